@@ -8,4 +8,9 @@
 
 set -e # Exit on failure
 
+# Use the AOT cache from `mvn -Paot package` when it has been built
+AOT_CACHE=/tmp/codecrafters-build-shell-java/codecrafters-shell.aot
+if [ -f "$AOT_CACHE" ]; then
+  exec java --enable-preview --enable-native-access=ALL-UNNAMED -XX:AOTCache="$AOT_CACHE" -jar /tmp/codecrafters-build-shell-java/codecrafters-shell.jar "$@"
+fi
 exec java --enable-preview --enable-native-access=ALL-UNNAMED -jar /tmp/codecrafters-build-shell-java/codecrafters-shell.jar "$@"
@@ -0,0 +1,116 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+// Minimal warmup/measure loop shared by the benchmark harnesses. The shell
+// classes live in the unnamed package, which JMH refuses to generate code for,
+// so the harnesses drive the code directly.
+final class Bench {
+    private Bench() {
+    }
+
+    static volatile Object sink;
+
+    // Runs the task for warmup + measured iterations and returns the mean
+    // nanoseconds per measured iteration.
+    static double measure(String name, int warmup, int iterations, Callable<?> task) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            sink = task.call();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink = task.call();
+        }
+        double nsPerOp = (System.nanoTime() - start) / (double) iterations;
+        System.out.printf("%-40s %14.1f ns/op%n", name, nsPerOp);
+        return nsPerOp;
+    }
+
+    // Bytes allocated so far by the calling thread
+    static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getCurrentThreadAllocatedBytes();
+    }
+
+    // Short hash of the checked-out commit, or "unknown" outside a git tree
+    static String commit() {
+        try {
+            Process git = new ProcessBuilder("git", "rev-parse", "--short", "HEAD")
+                    .redirectError(ProcessBuilder.Redirect.DISCARD).start();
+            String hash = new String(git.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+            return git.waitFor(10, TimeUnit.SECONDS) && git.exitValue() == 0 && !hash.isEmpty() ? hash : "unknown";
+        } catch (IOException | InterruptedException e) {
+            return "unknown";
+        }
+    }
+
+    // Writes the results as JSON, stamped with the commit and JVM, so runs from
+    // different commits can be diffed. Values may be maps, lists, numbers,
+    // booleans or strings.
+    static void writeJson(Path file, String benchmark, Map<String, ?> results) throws IOException {
+        StringBuilder sb = new StringBuilder("{\n");
+        sb.append("  \"benchmark\": ");
+        appendJson(sb, benchmark, 1);
+        sb.append(",\n  \"commit\": ");
+        appendJson(sb, commit(), 1);
+        sb.append(",\n  \"java\": ");
+        appendJson(sb, System.getProperty("java.vm.version"), 1);
+        sb.append(",\n  \"timestamp\": ");
+        appendJson(sb, java.time.Instant.now().toString(), 1);
+        sb.append(",\n  \"results\": ");
+        appendJson(sb, results, 1);
+        sb.append("\n}\n");
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Files.writeString(file, sb);
+        System.out.println("results written to " + file);
+    }
+
+    private static void appendJson(StringBuilder sb, Object value, int depth) {
+        if (value instanceof Map<?, ?> map) {
+            sb.append('{');
+            String separator = "\n";
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                sb.append(separator).append("  ".repeat(depth + 1));
+                appendJson(sb, String.valueOf(entry.getKey()), depth + 1);
+                sb.append(": ");
+                appendJson(sb, entry.getValue(), depth + 1);
+                separator = ",\n";
+            }
+            sb.append(map.isEmpty() ? "" : "\n" + "  ".repeat(depth)).append('}');
+        } else if (value instanceof List<?> list) {
+            sb.append('[');
+            for (int i = 0; i < list.size(); i++) {
+                sb.append(i == 0 ? "" : ", ");
+                appendJson(sb, list.get(i), depth + 1);
+            }
+            sb.append(']');
+        } else if (value instanceof Double d && (d.isNaN() || d.isInfinite())) {
+            sb.append("null");
+        } else if (value instanceof Number || value instanceof Boolean) {
+            sb.append(value);
+        } else if (value == null) {
+            sb.append("null");
+        } else {
+            sb.append('"');
+            for (char c : value.toString().toCharArray()) {
+                if (c == '"' || c == '\\') {
+                    sb.append('\\').append(c);
+                } else if (c < 0x20) {
+                    sb.append(String.format("\\u%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+    }
+}
@@ -0,0 +1,54 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Runs each in-process utility through handleCommand and compares it with
+// the same command line naming the binary by path, which always forks.
+// Output goes to /dev/null so only dispatch, spawn and the copy are timed.
+//
+// usage: CoreUtilsBench [fileKilobytes] [iterations]
+public class CoreUtilsBench {
+    public static void main(String[] args) throws Exception {
+        int kilobytes = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        Path dir = Files.createTempDirectory("coreutils-bench");
+        Path file = dir.resolve("input.txt");
+        StringBuilder sb = new StringBuilder();
+        for (int line = 0; sb.length() < kilobytes << 10; line++) {
+            sb.append("line ").append(line).append(" of the benchmark input\n");
+        }
+        Files.writeString(file, sb);
+        for (int i = 0; i < 100; i++) {
+            Files.createFile(dir.resolve("entry-" + i));
+        }
+
+        CommandHandler handler = new CommandHandler();
+        String[][] cases = {
+                { "cat", file + " > /dev/null" },
+                { "head", "-n 20 " + file + " > /dev/null" },
+                { "wc", file + " > /dev/null" },
+                { "ls", dir + " > /dev/null" },
+                { "basename", file + " .txt > /dev/null" },
+                { "true", "" },
+        };
+        System.out.printf("input %d KB, %d iterations%n", kilobytes, iterations);
+        for (String[] c : cases) {
+            File binary = handler.getPathSearcher().lookup(c[0]);
+            String inProcess = c[0] + " " + c[1];
+            double builtin = Bench.measure(c[0] + " (in-process)", iterations / 10, iterations, () -> {
+                handler.handleCommand(inProcess);
+                return null;
+            });
+            if (binary == null) {
+                System.out.println(c[0] + ": no binary on PATH to compare with");
+                continue;
+            }
+            String external = binary.getAbsolutePath() + " " + c[1];
+            double forked = Bench.measure(binary.getAbsolutePath(), iterations / 10, iterations, () -> {
+                handler.handleCommand(external);
+                return null;
+            });
+            System.out.printf("%-40s %14.1fx%n", c[0] + " speedup", forked / builtin);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+// Runs a large generated script the way the shell runs piped input: every
+// line through handleCommand as ScriptRunner does, timing each one, then the
+// whole script through a fresh `java Main` with stdin redirected from it (so
+// non-TTY mode, startup included). Records commands/s, p50/p99/max latency
+// and allocation rate, and writes them as JSON, by default to
+// target/bench/EndToEndBench-<commit>.json.
+//
+// The corpus mixes builtins, variables, redirections, here-strings, globs,
+// pipelines through the in-process utilities and, every forkEvery lines, an
+// external command.
+//
+// usage: EndToEndBench [commands] [forkEvery] [results.json]
+public class EndToEndBench {
+    public static void main(String[] args) throws Exception {
+        int commands = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int forkEvery = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        Path output = args.length > 2 ? Path.of(args[2])
+                : Path.of("target", "bench", "EndToEndBench-" + Bench.commit() + ".json");
+        Path dir = Files.createTempDirectory("end-to-end-bench");
+        List<String> corpus = generate(dir, commands, forkEvery);
+        Path script = dir.resolve("corpus.sh");
+        Files.write(script, corpus);
+        System.out.printf("corpus of %d commands (%d distinct), one fork every %d%n", corpus.size(),
+                corpus.stream().distinct().count(), forkEvery);
+
+        Map<String, Object> results = new LinkedHashMap<>();
+        results.put("commands", corpus.size());
+        results.put("forkEvery", forkEvery);
+        // the first pass warms the JIT and the shell's caches; the second is measured
+        replay(new CommandHandler(), corpus, dir);
+        results.put("inProcess", replay(new CommandHandler(), corpus, dir));
+        results.put("process", runShell(script, corpus.size()));
+        Bench.writeJson(output, "EndToEndBench", results);
+    }
+
+    private static Map<String, Object> replay(CommandHandler handler, List<String> corpus, Path dir)
+            throws IOException {
+        handler.handleCommand("cd " + dir);
+        long[] latencies = new long[corpus.size()];
+        long allocatedBefore = Bench.allocatedBytes();
+        long gcBefore = gcCount();
+        long start = System.nanoTime();
+        for (int i = 0; i < latencies.length; i++) {
+            long commandStart = System.nanoTime();
+            handler.handleCommand(corpus.get(i), LineSource.NONE);
+            latencies[i] = System.nanoTime() - commandStart;
+        }
+        ShellOutput.flush();
+        long elapsed = System.nanoTime() - start;
+        long allocated = Bench.allocatedBytes() - allocatedBefore;
+
+        Arrays.sort(latencies);
+        double seconds = elapsed / 1e9;
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("commandsPerSecond", ShellBench.round(latencies.length / seconds));
+        result.put("p50Micros", ShellBench.round(percentile(latencies, 0.50) / 1e3));
+        result.put("p99Micros", ShellBench.round(percentile(latencies, 0.99) / 1e3));
+        result.put("maxMicros", ShellBench.round(latencies[latencies.length - 1] / 1e3));
+        result.put("allocatedMBPerSecond", ShellBench.round(allocated / seconds / (1 << 20)));
+        result.put("bytesPerCommand", ShellBench.round(allocated / (double) latencies.length));
+        result.put("gcCollections", gcCount() - gcBefore);
+        System.out.printf("%-40s %14.1f commands/s%n", "in-process", result.get("commandsPerSecond"));
+        System.out.printf("%-40s %14.1f us p50, %.1f us p99%n", "", result.get("p50Micros"),
+                result.get("p99Micros"));
+        System.out.printf("%-40s %14.1f B/command%n", "", result.get("bytesPerCommand"));
+        return result;
+    }
+
+    // Times the whole script through a new shell process reading it on stdin.
+    // The JVM is started with this one's options and class path.
+    private static Map<String, Object> runShell(Path script, int lines) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("Main");
+        Process shell = new ProcessBuilder(command)
+                .directory(script.getParent().toFile())
+                .redirectInput(script.toFile())
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        long start = System.nanoTime();
+        int status = shell.waitFor();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("exitStatus", status);
+        result.put("seconds", Math.round(seconds * 1000) / 1000.0);
+        result.put("commandsPerSecond", ShellBench.round(lines / seconds));
+        System.out.printf("%-40s %14.1f commands/s (%.3f s, startup included)%n", "java Main < corpus",
+                lines / seconds, seconds);
+        return result;
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(fraction * sorted.length) - 1)];
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (var gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static List<String> generate(Path dir, int commands, int forkEvery) throws IOException {
+        Files.writeString(dir.resolve("data.txt"), "gamma\nalpha\nbeta\nalpha\n");
+        Files.createDirectories(dir.resolve("sub"));
+        for (int i = 0; i < 50; i++) {
+            Files.createFile(dir.resolve("sub").resolve("file-" + i + (i % 2 == 0 ? ".txt" : ".log")));
+        }
+        File trueBinary = new PathSearcher().lookup("true");
+        String external = trueBinary != null ? trueBinary.getAbsolutePath() : "/bin/true";
+        String[] templates = {
+                "echo step %d 'of the run' > /dev/null",
+                "export STEP=%d",
+                "echo \"$STEP and $HOME\" >> out.log",
+                "type echo > /dev/null",
+                "cd sub && pwd > /dev/null && cd - > /dev/null",
+                "pushd sub > /dev/null && popd > /dev/null",
+                "echo sub/*.txt > /dev/null",
+                "cat <<< 'here string %d' > /dev/null",
+                "cat data.txt | sort | uniq -c > /dev/null",
+                "wc -l data.txt > /dev/null",
+                "true && echo ok %d > /dev/null || echo failed > /dev/null",
+                "no-such-command-%d 2> /dev/null",
+        };
+        Random random = new Random(42);
+        List<String> corpus = new ArrayList<>(commands);
+        for (int i = 1; i <= commands; i++) {
+            if (forkEvery > 0 && i % forkEvery == 0) {
+                corpus.add(external + " " + i);
+            } else {
+                // a small number range, so lines repeat as in loop-heavy scripts
+                corpus.add(templates[random.nextInt(templates.length)].replace("%d",
+                        Integer.toString(random.nextInt(20))));
+            }
+        }
+        return corpus;
+    }
+}
@@ -0,0 +1,46 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Expands the same patterns over and over, as a script looping over a large
+// directory would, with and without the directory-listing cache. `flat` is
+// one directory of N files, `tree` is N files spread over 100 directories
+// three levels deep for the `**` walk.
+//
+// usage: GlobBench [files] [iterations]
+public class GlobBench {
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        Path flat = Files.createTempDirectory("glob-bench-flat");
+        for (int i = 0; i < files; i++) {
+            Files.createFile(flat.resolve("file-" + i + (i % 10 == 0 ? ".log" : ".dat")));
+        }
+        Path tree = Files.createTempDirectory("glob-bench-tree");
+        for (int i = 0; i < files; i++) {
+            int d = i % 100;
+            Path dir = tree.resolve("d" + d / 10).resolve("e" + d % 10).resolve("f");
+            Files.createDirectories(dir);
+            Files.createFile(dir.resolve("file-" + i + (i % 10 == 0 ? ".log" : ".dat")));
+        }
+
+        String[][] cases = {
+                { "flat", "*.log" },
+                { "flat", "file-1234?.dat" },
+                { "tree", "**/*.log" },
+                { "tree", "d?/e[0-4]/f/file-1*" },
+        };
+        System.out.printf("%d files, %d iterations%n", files, iterations);
+        for (String[] c : cases) {
+            File directory = (c[0].equals("flat") ? flat : tree).toFile();
+            String word = Lexer.GLOB + c[1];
+            Glob uncached = new Glob(new DirectoryCache(0, new ShellMetrics()));
+            Glob cached = new Glob(new DirectoryCache(DirectoryCache.CAPACITY, new ShellMetrics()));
+            int matches = cached.expand(word, directory).size();
+            System.out.printf("%s %s (%d matches)%n", c[0], c[1], matches);
+            double cold = Bench.measure("  uncached", 2, iterations, () -> uncached.expand(word, directory));
+            double warm = Bench.measure("  cached", 2, iterations, () -> cached.expand(word, directory));
+            System.out.printf("%-40s %14.1fx%n", "  speedup", cold / warm);
+        }
+    }
+}
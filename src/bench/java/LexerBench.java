@@ -0,0 +1,194 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// Compares the original parseQuote + redirection scan + String.join path with
+// Lexer on a corpus of realistic command lines and on very long generated
+// lines. Reports ns/op and bytes allocated per op.
+//
+// usage: LexerBench [longLineChars]
+public class LexerBench {
+    private static final String[] CORPUS = {
+            "echo hello world",
+            "ls -la /usr/local/bin",
+            "cat '/tmp/file with spaces.txt' > /tmp/out.txt",
+            "echo \"quoted \\\"text\\\" here\" 2>> /tmp/err.log",
+            "grep -rn 'TODO' src/main/java 1> todo.txt",
+            "type cd",
+            "cd ../../projects/shell",
+            "echo a\\ b\\ c 'single' \"double\" mixed'quotes'here",
+            "custom_exe_1234 alpha beta gamma delta",
+            "pwd",
+    };
+
+    public static void main(String[] args) throws Exception {
+        int longLine = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        String generated = generate(longLine);
+        Lexer lexer = new Lexer();
+        List<String> words = new ArrayList<>();
+
+        System.out.println("corpus of " + CORPUS.length + " lines");
+        run("parseQuote path (corpus)", 20_000, 200_000, () -> {
+            long n = 0;
+            for (String line : CORPUS) {
+                n += oldPath(line).length();
+            }
+            return n;
+        });
+        run("lexer path (corpus)", 20_000, 200_000, () -> {
+            long n = 0;
+            for (String line : CORPUS) {
+                n += lexerPath(lexer, words, line).length();
+            }
+            return n;
+        });
+        run("lexer tokens only (corpus)", 20_000, 200_000, () -> {
+            long n = 0;
+            for (String line : CORPUS) {
+                lexer.lex(line);
+                n += lexer.size();
+            }
+            return n;
+        });
+
+        System.out.println("generated line of " + generated.length() + " chars");
+        run("parseQuote path (long line)", 20, 200, () -> oldPath(generated).length());
+        run("lexer path (long line)", 20, 200, () -> lexerPath(lexer, words, generated).length());
+        run("lexer tokens only (long line)", 20, 200, () -> {
+            lexer.lex(generated);
+            return lexer.size();
+        });
+
+        if (!oldPath(generated).equals(lexerPath(lexer, words, generated))) {
+            System.out.println("WARNING: paths disagree on the generated line");
+        }
+    }
+
+    private static void run(String name, int warmup, int iterations, java.util.concurrent.Callable<?> task)
+            throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long before = threads.getCurrentThreadAllocatedBytes();
+        Bench.measure(name, warmup, iterations, task);
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+        System.out.printf("%-40s %14.1f B/op%n", "", allocated / (double) (warmup + iterations));
+    }
+
+    private static String lexerPath(Lexer lexer, List<String> words, String line) {
+        lexer.lex(line);
+        words.clear();
+        for (int i = 0; i < lexer.size(); i++) {
+            if (lexer.kind(i) == Lexer.WORD) {
+                words.add(lexer.word(i));
+            } else if (lexer.kind(i) != Lexer.PIPE) {
+                i++; // skip redirection target
+            }
+        }
+        return words.size() > 1 ? String.join(" ", words.subList(1, words.size())) : "";
+    }
+
+    // the original CommandHandler.parseQuote + handleCommand argument handling
+    private static String oldPath(String input) {
+        String[] parts = parseQuote(input);
+        List<String> argParam = new ArrayList<>();
+        for (int i = 0; i < parts.length; i++) {
+            if (parts[i].equals(">") || parts[i].equals("1>") || parts[i].equals("2>") || parts[i].equals(">>")
+                    || parts[i].equals("1>>") || parts[i].equals("2>>")) {
+                i++;
+            } else {
+                argParam.add(parts[i]);
+            }
+        }
+        String[] cleanedParts = argParam.toArray(new String[0]);
+        String[] parsedArgList = cleanedParts.length > 1 ? Arrays.copyOfRange(cleanedParts, 1, cleanedParts.length)
+                : new String[0];
+        return String.join(" ", parsedArgList);
+    }
+
+    private static String[] parseQuote(String str) {
+        List<String> args = new ArrayList<>();
+        StringBuilder currentArg = new StringBuilder();
+        boolean inSingleQuote = false;
+        boolean inDoubleQuote = false;
+
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+
+            if (inSingleQuote) {
+                if (c == '\'') {
+                    inSingleQuote = false;
+                } else {
+                    currentArg.append(c);
+                }
+            } else if (inDoubleQuote) {
+                if (c == '\"') {
+                    inDoubleQuote = false;
+                } else if (c == '\\') {
+                    if (i + 1 < str.length()) {
+                        char next = str.charAt(i + 1);
+                        if (next == '\"' || next == '\\') {
+                            currentArg.append(next);
+                            i++;
+                        } else {
+                            currentArg.append(c);
+                        }
+                    } else {
+                        currentArg.append(c);
+                    }
+                } else {
+                    currentArg.append(c);
+                }
+            } else {
+                if (c == '\\') {
+                    if (i + 1 < str.length()) {
+                        char next = str.charAt(i + 1);
+                        currentArg.append(next);
+                        i++;
+                        continue;
+                    }
+                } else if (c == '\'') {
+                    inSingleQuote = true;
+                } else if (c == '\"') {
+                    inDoubleQuote = true;
+                } else if (Character.isWhitespace(c)) {
+                    if (currentArg.length() > 0) {
+                        args.add(currentArg.toString());
+                        currentArg.setLength(0);
+                    }
+                } else {
+                    currentArg.append(c);
+                }
+            }
+        }
+
+        if (currentArg.length() > 0) {
+            args.add(currentArg.toString());
+        }
+        return args.toArray(new String[0]);
+    }
+
+    private static String generate(int chars) {
+        Random random = new Random(7);
+        StringBuilder sb = new StringBuilder(chars + 64).append("echo");
+        while (sb.length() < chars) {
+            sb.append(' ');
+            switch (random.nextInt(4)) {
+                case 0:
+                    sb.append("plain").append(random.nextInt(1000));
+                    break;
+                case 1:
+                    sb.append("'single quoted ").append(random.nextInt(1000)).append('\'');
+                    break;
+                case 2:
+                    sb.append("\"double \\\"esc\\\" ").append(random.nextInt(1000)).append('"');
+                    break;
+                default:
+                    sb.append("back\\ slash").append(random.nextInt(1000));
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+}
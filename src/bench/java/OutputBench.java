@@ -0,0 +1,81 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+// Prints N lines from a builtin-style loop through each console output path:
+// a PrintStream built the way the JDK builds System.out (128-byte buffer,
+// flushed on every println), the per-command BufferedWriter sink the shell
+// used before ShellOutput, and the shared ShellOutput buffer. Each is run as
+// one command printing every line and as one command per line (echo in a
+// loop). Output goes to `target`, /dev/null by default.
+//
+// usage: OutputBench [lines] [target]
+public class OutputBench {
+    public static void main(String[] args) throws Exception {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        String target = args.length > 1 ? args[1] : "/dev/null";
+        PrintStream systemOut = new PrintStream(new BufferedOutputStream(new FileOutputStream(target), 128), true,
+                StandardCharsets.UTF_8);
+        ShellOutput.attach(new FileOutputStream(target), StandardCharsets.UTF_8);
+        String[] text = new String[1000];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = "line " + i + " of the benchmark output";
+        }
+
+        System.out.printf("%d lines to %s%n", lines, target);
+        double println = Bench.measure("System.out.println", 1, 3, () -> {
+            for (int i = 0; i < lines; i++) {
+                systemOut.println(text[i % text.length]);
+            }
+            return null;
+        });
+        double oldLoop = Bench.measure("per-command writer, one command", 1, 3, () -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(systemOut, StandardCharsets.UTF_8));
+            for (int i = 0; i < lines; i++) {
+                writer.write(text[i % text.length]);
+                writer.write(System.lineSeparator());
+            }
+            writer.flush();
+            return null;
+        });
+        double newLoop = Bench.measure("ShellOutput, one command", 1, 3, () -> {
+            OutputSink sink = OutputSink.console();
+            for (int i = 0; i < lines; i++) {
+                sink.println(text[i % text.length]);
+            }
+            sink.close();
+            ShellOutput.flush();
+            return null;
+        });
+        double oldCommands = Bench.measure("per-command writer, line per command", 1, 3, () -> {
+            for (int i = 0; i < lines; i++) {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(systemOut, StandardCharsets.UTF_8));
+                writer.write(text[i % text.length]);
+                writer.write(System.lineSeparator());
+                writer.flush();
+            }
+            return null;
+        });
+        double newCommands = Bench.measure("ShellOutput, line per command", 1, 3, () -> {
+            for (int i = 0; i < lines; i++) {
+                OutputSink sink = OutputSink.console();
+                sink.println(text[i % text.length]);
+                sink.close();
+            }
+            ShellOutput.flush();
+            return null;
+        });
+        System.out.println();
+        String[] names = { "System.out.println", "per-command writer, one command", "ShellOutput, one command",
+                "per-command writer, line per command", "ShellOutput, line per command" };
+        double[] nanos = { println, oldLoop, newLoop, oldCommands, newCommands };
+        for (int i = 0; i < names.length; i++) {
+            System.out.printf("%-40s %14.0f lines/s%n", names[i], lines * 1e9 / nanos[i]);
+        }
+        systemOut.close();
+    }
+}
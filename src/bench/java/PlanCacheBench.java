@@ -0,0 +1,93 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// Replays a command log through handleCommand with and without the plan
+// cache, and times planning alone (lex, parse, resolve) against a cache hit.
+// The log is read from a file, or generated: a few dozen distinct builtin and
+// pipeline lines repeated in random order, as loop-heavy scripts produce.
+// Output goes to /dev/null so the shell's own overhead dominates.
+//
+// usage: PlanCacheBench [commandLog] [replays]
+public class PlanCacheBench {
+    public static void main(String[] args) throws Exception {
+        List<String> log = args.length > 0 && !args[0].equals("-") ? Files.readAllLines(Path.of(args[0]))
+                : generate(5_000);
+        int replays = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        CommandHandler cached = new CommandHandler();
+        CommandHandler uncached = new CommandHandler(0);
+        System.out.printf("log of %d lines (%d distinct)%n", log.size(), log.stream().distinct().count());
+        // rounds alternate between the two shells so JIT warm-up and machine noise
+        // hit both alike; the median round is reported
+        for (int i = 0; i < 3; i++) {
+            replay(uncached, log);
+            replay(cached, log);
+        }
+        long[] without = new long[replays];
+        long[] with = new long[replays];
+        for (int r = 0; r < replays; r++) {
+            long start = System.nanoTime();
+            replay(uncached, log);
+            without[r] = System.nanoTime() - start;
+            start = System.nanoTime();
+            replay(cached, log);
+            with[r] = System.nanoTime() - start;
+        }
+        double withoutPerCommand = median(without) / (double) log.size();
+        double withPerCommand = median(with) / (double) log.size();
+        System.out.printf("%-40s %14.1f ns/command%n", "no plan cache", withoutPerCommand);
+        System.out.printf("%-40s %14.1f ns/command%n", "plan cache", withPerCommand);
+        System.out.printf("%-40s %14.1fx%n", "speedup", withoutPerCommand / withPerCommand);
+
+        ShellMetrics metrics = cached.getShellState().getMetrics();
+        long hits = metrics.planHits.sum();
+        System.out.printf("hit rate %.1f%% (%d hits, %d misses)%n",
+                100.0 * hits / (hits + metrics.planMisses.sum()), hits, metrics.planMisses.sum());
+
+        double planning = Bench.measure("plan only (miss path)", 2, replays, () -> {
+            long n = 0;
+            for (String line : log) {
+                n += uncached.plan(line).pipelines.size();
+            }
+            return n;
+        });
+        System.out.printf("%-40s %14.1f ns/command%n", "planning cost saved per hit", planning / log.size());
+    }
+
+    private static long median(long[] samples) {
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static long replay(CommandHandler handler, List<String> log) {
+        for (String line : log) {
+            handler.handleCommand(line);
+        }
+        return log.size();
+    }
+
+    private static List<String> generate(int lines) throws IOException {
+        Path dir = Files.createTempDirectory("plan-cache-bench");
+        Files.writeString(dir.resolve("data.txt"), "alpha\nbeta\ngamma\n");
+        List<String> distinct = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            distinct.add("echo step " + i + " 'of the build' > /dev/null");
+            distinct.add("type echo > /dev/null");
+            distinct.add("true && echo ok " + i + " > /dev/null || echo failed > /dev/null");
+            distinct.add("wc -l " + dir.resolve("data.txt") + " > /dev/null");
+        }
+        distinct.add("pwd > /dev/null");
+        Random random = new Random(42);
+        List<String> log = new ArrayList<>(lines);
+        for (int i = 0; i < lines; i++) {
+            log.add(distinct.get(random.nextInt(distinct.size())));
+        }
+        return log;
+    }
+}
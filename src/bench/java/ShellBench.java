@@ -0,0 +1,112 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+// The regression suite for the shell's hot paths: lexing, PATH search and
+// lookup, handleCommand dispatch of builtins with redirection, and spawning
+// an external command through ExternalCommandExecutor. Reports ns/op and
+// B/op and writes them as JSON, by default to
+// target/bench/ShellBench-<commit>.json, so two commits can be diffed.
+//
+// usage: ShellBench [iterations] [results.json]
+public class ShellBench {
+    private static final String[] LINES = {
+            "echo hello world",
+            "cat '/tmp/file with spaces.txt' > /tmp/out.txt",
+            "echo \"quoted \\\"text\\\" here\" 2>> /tmp/err.log",
+            "grep -rn 'TODO' src/main/java | sort | uniq -c > todo.txt",
+            "echo a\\ b\\ c 'single' \"double\" mixed'quotes'here",
+            "cd ../../projects/shell && pwd",
+    };
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        Path output = args.length > 1 ? Path.of(args[1])
+                : Path.of("target", "bench", "ShellBench-" + Bench.commit() + ".json");
+        Path dir = Files.createTempDirectory("shell-bench");
+        String out = dir.resolve("out.txt").toString();
+
+        CommandHandler handler = new CommandHandler();
+        PathSearcher pathSearcher = handler.getPathSearcher();
+        ShellState shellState = handler.getShellState();
+        ExternalCommandExecutor executor = new ExternalCommandExecutor();
+        Lexer lexer = new Lexer();
+        Map<String, Object> results = new LinkedHashMap<>();
+
+        run(results, "lex", iterations, () -> {
+            long n = 0;
+            for (String line : LINES) {
+                lexer.lex(line);
+                n += lexer.size();
+            }
+            return n;
+        });
+        run(results, "plan", iterations / 10, () -> {
+            long n = 0;
+            for (String line : LINES) {
+                n += handler.plan(line).pipelines.size();
+            }
+            return n;
+        });
+        run(results, "PathSearcher.search (hit)", iterations / 10, () -> pathSearcher.search("ls"));
+        run(results, "PathSearcher.search (miss)", iterations / 10,
+                () -> pathSearcher.search("no-such-command-xyz"));
+        run(results, "PathSearcher.lookup (hit)", iterations, () -> pathSearcher.lookup("ls"));
+        run(results, "PathSearcher.lookup (miss)", iterations / 10,
+                () -> pathSearcher.lookup("no-such-command-xyz"));
+        run(results, "dispatch echo > file", iterations / 10, () -> {
+            handler.handleCommand("echo hello world > " + out);
+            return null;
+        });
+        run(results, "dispatch echo >> /dev/null 2>&1", iterations / 10, () -> {
+            handler.handleCommand("echo 'quoted words' \"and more\" >> /dev/null 2>&1");
+            return null;
+        });
+        run(results, "dispatch type ls > /dev/null", iterations / 10, () -> {
+            handler.handleCommand("type ls > /dev/null");
+            return null;
+        });
+        run(results, "dispatch pwd | cat > /dev/null", iterations / 10, () -> {
+            handler.handleCommand("pwd | cat > /dev/null");
+            return null;
+        });
+
+        File binary = pathSearcher.lookup("true");
+        if (binary == null) {
+            System.out.println("true: not on PATH, skipping spawn");
+        } else {
+            int spawns = Math.max(10, iterations / 1000);
+            run(results, "spawn true", spawns, () -> {
+                RedirectionContext context = new RedirectionContext();
+                context.stdoutFile = new File("/dev/null");
+                return executor.execute("true", new String[0], pathSearcher, shellState, context);
+            });
+            run(results, "spawn true (by path)", spawns, () -> {
+                RedirectionContext context = new RedirectionContext();
+                context.stdoutFile = new File("/dev/null");
+                return executor.execute(binary.getAbsolutePath(), new String[0], pathSearcher, shellState, context);
+            });
+        }
+        Bench.writeJson(output, "ShellBench", results);
+    }
+
+    private static void run(Map<String, Object> results, String name, int iterations, Callable<?> task)
+            throws Exception {
+        long before = Bench.allocatedBytes();
+        double nsPerOp = Bench.measure(name, iterations / 10, iterations, task);
+        double bytesPerOp = (Bench.allocatedBytes() - before) / (double) (iterations / 10 + iterations);
+        System.out.printf("%-40s %14.1f B/op%n", "", bytesPerOp);
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("iterations", iterations);
+        result.put("nsPerOp", round(nsPerOp));
+        result.put("bytesPerOp", round(bytesPerOp));
+        results.put(name, result);
+    }
+
+    static double round(double value) {
+        return Math.round(value * 10) / 10.0;
+    }
+}
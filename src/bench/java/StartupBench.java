@@ -0,0 +1,90 @@
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Measures shell start-up with and without the AOT cache built by the `aot`
+// profile: wall time for `-c exit`, and time until the first "$ " prompt of
+// an interactive (-i) session.
+//
+// usage: StartupBench <shell.jar> [shell.aot] [runs]
+public class StartupBench {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: StartupBench <shell.jar> [shell.aot] [runs]");
+            System.exit(2);
+        }
+        String jar = args[0];
+        String cache = args.length > 1 ? args[1] : jar.replaceAll("\\.jar$", ".aot");
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        boolean haveCache = new File(cache).isFile();
+        if (!haveCache) {
+            System.out.println("no AOT cache at " + cache + ", measuring the plain jar only");
+        }
+
+        report("-c exit", runs, () -> exitRun(jar, null));
+        if (haveCache) {
+            report("-c exit (AOT cache)", runs, () -> exitRun(jar, cache));
+        }
+        report("first prompt", runs, () -> firstPrompt(jar, null));
+        if (haveCache) {
+            report("first prompt (AOT cache)", runs, () -> firstPrompt(jar, cache));
+        }
+    }
+
+    interface Run {
+        long nanos() throws Exception;
+    }
+
+    private static void report(String name, int runs, Run run) throws Exception {
+        run.nanos(); // warm the page cache
+        long[] samples = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            samples[i] = run.nanos();
+        }
+        Arrays.sort(samples);
+        System.out.printf("%-28s median %7.1f ms   min %7.1f ms   max %7.1f ms%n", name,
+                samples[runs / 2] / 1e6, samples[0] / 1e6, samples[runs - 1] / 1e6);
+    }
+
+    private static long exitRun(String jar, String cache) throws Exception {
+        long start = System.nanoTime();
+        Process process = java(jar, cache, "-c", "exit").redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        process.waitFor();
+        return System.nanoTime() - start;
+    }
+
+    private static long firstPrompt(String jar, String cache) throws Exception {
+        long start = System.nanoTime();
+        Process process = java(jar, cache, "-i").start();
+        try (InputStream out = process.getInputStream()) {
+            int previous = -1;
+            int c;
+            while ((c = out.read()) != -1) {
+                if (previous == '$' && c == ' ') {
+                    break;
+                }
+                previous = c;
+            }
+            long elapsed = System.nanoTime() - start;
+            process.getOutputStream().close();
+            process.waitFor();
+            return elapsed;
+        }
+    }
+
+    private static ProcessBuilder java(String jar, String cache, String... shellArgs) {
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("--enable-preview");
+        command.add("--enable-native-access=ALL-UNNAMED");
+        if (cache != null) {
+            command.add("-XX:AOTCache=" + cache);
+        }
+        command.add("-jar");
+        command.add(jar);
+        command.addAll(Arrays.asList(shellArgs));
+        return new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.DISCARD);
+    }
+}
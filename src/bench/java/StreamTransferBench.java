@@ -0,0 +1,72 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Scanner;
+
+// Compares the old Scanner/println re-printing path for process output with
+// StreamTransfer.copy.
+//
+// usage: StreamTransferBench [megabytes] [bufferSize]
+public class StreamTransferBench {
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int bufferSize = args.length > 1 ? Integer.parseInt(args[1]) : StreamTransfer.BUFFER_SIZE;
+        byte[] text = textPayload(megabytes);
+        byte[] binary = binaryPayload(megabytes);
+
+        System.out.printf("payload %d MB, buffer %d bytes%n", megabytes, bufferSize);
+        report("scanner (text)", text, Bench.measure("scanner (text)", 2, 5, () -> scannerCopy(text)));
+        report("transfer (text)", text,
+                Bench.measure("transfer (text)", 2, 5, () -> StreamTransfer.copy(new ByteArrayInputStream(text),
+                        OutputStream.nullOutputStream(), bufferSize)));
+        report("scanner (binary)", binary, Bench.measure("scanner (binary)", 2, 5, () -> scannerCopy(binary)));
+        report("transfer (binary)", binary,
+                Bench.measure("transfer (binary)", 2, 5, () -> StreamTransfer.copy(new ByteArrayInputStream(binary),
+                        OutputStream.nullOutputStream(), bufferSize)));
+
+        // byte-exactness check on the binary payload
+        ByteArrayOutputStream viaScanner = new ByteArrayOutputStream();
+        scannerCopy(new ByteArrayInputStream(binary), new PrintStream(viaScanner, true));
+        ByteArrayOutputStream viaTransfer = new ByteArrayOutputStream();
+        StreamTransfer.copy(new ByteArrayInputStream(binary), viaTransfer, bufferSize);
+        System.out.println("scanner byte-exact:  " + Arrays.equals(binary, viaScanner.toByteArray()));
+        System.out.println("transfer byte-exact: " + Arrays.equals(binary, viaTransfer.toByteArray()));
+    }
+
+    // the pre-StreamTransfer path from ExternalCommandExecutor.runProcess
+    private static long scannerCopy(byte[] payload) {
+        scannerCopy(new ByteArrayInputStream(payload), new PrintStream(OutputStream.nullOutputStream(), true));
+        return payload.length;
+    }
+
+    private static void scannerCopy(InputStream in, PrintStream out) {
+        try (Scanner outputScanner = new Scanner(in)) {
+            while (outputScanner.hasNextLine()) {
+                out.println(outputScanner.nextLine());
+            }
+        }
+    }
+
+    private static void report(String name, byte[] payload, double nsPerOp) {
+        System.out.printf("%-40s %14.1f MB/s%n", name, payload.length / (1024.0 * 1024.0) / (nsPerOp / 1e9));
+    }
+
+    private static byte[] textPayload(int megabytes) {
+        StringBuilder sb = new StringBuilder(megabytes << 20);
+        int line = 0;
+        while (sb.length() < megabytes << 20) {
+            sb.append("2026-10-17T12:00:00Z INFO request ").append(line++).append(" served in 3ms\n");
+        }
+        return sb.toString().getBytes();
+    }
+
+    private static byte[] binaryPayload(int megabytes) {
+        byte[] payload = new byte[megabytes << 20];
+        new Random(42).nextBytes(payload);
+        return payload;
+    }
+}
@@ -1,9 +1,74 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.Console;
 import java.io.File;
-import java.io.PrintStream;
-import java.io.FileWriter;
-import java.io.PrintWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.PatternSyntaxException;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
 
 // engine - high level - logic layer
 import org.jline.reader.LineReader;
@@ -19,29 +84,253 @@ import org.jline.reader.impl.DefaultParser;
 import org.jline.terminal.Terminal;
 import org.jline.terminal.TerminalBuilder;
 
+// Completes the first word against builtins and PATH executables (from
+// CommandCompletionIndex) and any later word as a filename relative to the
+// shell's current directory.
 class BuiltinCompleter implements Completer {
+    private final CommandCompletionIndex commandIndex;
+    private final ShellState shellState;
+
+    BuiltinCompleter(CommandCompletionIndex commandIndex, ShellState shellState) {
+        this.commandIndex = commandIndex;
+        this.shellState = shellState;
+    }
 
     @Override
     public void complete(LineReader reader, ParsedLine line, List<Candidate> candidates) {
-        // builtins defined here
-        // line.word();
-        // candidates.add(new Candidate("echo"));
-        List<String> builtins = Arrays.asList("echo", "exit");
         String word = line.word();
-        for (String builtin : builtins) {
-            if (builtin.startsWith(word)) {
-                candidates.add(new Candidate(builtin));
+        if (line.wordIndex() == 0 && !word.contains("/")) {
+            for (String command : commandIndex.complete(word)) {
+                candidates.add(new Candidate(command));
+            }
+            return;
+        }
+        completeFilename(word, candidates);
+    }
+
+    private void completeFilename(String word, List<Candidate> candidates) {
+        int slash = word.lastIndexOf('/');
+        String dirPart = slash < 0 ? "" : word.substring(0, slash + 1);
+        String namePrefix = word.substring(slash + 1);
+
+        Path dir = dirPart.isEmpty() ? shellState.getCurrentDirectory().toPath()
+                : shellState.getCurrentDirectory().toPath().resolve(dirPart);
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (!name.startsWith(namePrefix) || (name.startsWith(".") && !namePrefix.startsWith("."))) {
+                    continue;
+                }
+                if (Files.isDirectory(entry)) {
+                    // no trailing space after a directory, so the user can keep typing
+                    candidates.add(new Candidate(dirPart + name + "/", name + "/", null, null, null, null, false));
+                } else {
+                    candidates.add(new Candidate(dirPart + name, name, null, null, null, null, true));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // unreadable or missing directory: nothing to offer
+        }
+    }
+}
+
+// Sorted snapshot of completion candidates; a prefix query is two binary
+// searches over the array.
+final class PrefixIndex {
+    private final String[] sorted;
+
+    PrefixIndex(Collection<String> names) {
+        this.sorted = new TreeSet<>(names).toArray(new String[0]);
+    }
+
+    List<String> withPrefix(String prefix) {
+        int from = lowerBound(prefix);
+        int to = lowerBound(prefix + Character.MAX_VALUE);
+        return Arrays.asList(sorted).subList(from, to);
+    }
+
+    int size() {
+        return sorted.length;
+    }
+
+    private int lowerBound(String key) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid].compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
+
+// Command-name completion candidates: the builtins plus every executable in
+// the PATH directories. The PATH scan happens on a background thread, and
+// until it finishes only builtins are offered. Afterwards directory mtimes
+// are rechecked (in the background, at most every REFRESH_INTERVAL_NANOS)
+// and only directories that changed are rescanned. The builtin table is only
+// read at the first completion, since listing it loads the CommandProviders.
+class CommandCompletionIndex {
+    private static final long REFRESH_INTERVAL_NANOS = 2_000_000_000L;
+
+    private final CommandRegistry builtins;
+    private final PathSearcher pathSearcher;
+    // executables on PATH
+    private volatile PrefixIndex index;
+    private volatile PrefixIndex builtinIndex;
+    // builtin table generation builtinIndex was built from
+    private volatile long builtinGeneration;
+
+    // directory -> (mtime at scan, executables found); only touched by the
+    // refresh thread
+    private final Map<String, Long> scannedMtimes = new HashMap<>();
+    private final Map<String, List<String>> scannedNames = new HashMap<>();
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private volatile long lastRefresh;
+
+    CommandCompletionIndex(CommandRegistry builtins, PathSearcher pathSearcher) {
+        this.builtins = builtins;
+        this.pathSearcher = pathSearcher;
+        refreshAsync();
+    }
+
+    List<String> complete(String prefix) {
+        if (builtinIndex == null || builtins.generation() != builtinGeneration) {
+            // first completion, or a builtin was enabled, disabled or loaded
+            Set<String> names = builtins.names();
+            builtinGeneration = builtins.generation();
+            builtinIndex = new PrefixIndex(names);
+        }
+        List<String> matches = builtinIndex.withPrefix(prefix);
+        PrefixIndex current = index;
+        if (current == null) {
+            return matches;
+        }
+        if (System.nanoTime() - lastRefresh > REFRESH_INTERVAL_NANOS) {
+            refreshAsync();
+        }
+        List<String> onPath = current.withPrefix(prefix);
+        if (matches.isEmpty()) {
+            return onPath;
+        }
+        // both are sorted; a name may be a builtin and on PATH
+        Set<String> merged = new TreeSet<>(matches);
+        merged.addAll(onPath);
+        return new ArrayList<>(merged);
+    }
+
+    private void refreshAsync() {
+        if (refreshing.compareAndSet(false, true)) {
+            Thread.ofVirtual().name("completion-index").start(() -> {
+                try {
+                    refresh();
+                } finally {
+                    lastRefresh = System.nanoTime();
+                    refreshing.set(false);
+                }
+            });
+        }
+    }
+
+    private void refresh() {
+        boolean changed = index == null;
+        Set<String> current = new HashSet<>(pathSearcher.getDirectories());
+        changed |= scannedMtimes.keySet().retainAll(current);
+        scannedNames.keySet().retainAll(current);
+        for (String dir : current) {
+            long mtime = new File(dir).lastModified();
+            Long previous = scannedMtimes.get(dir);
+            if (previous == null || previous != mtime) {
+                scannedMtimes.put(dir, mtime);
+                scannedNames.put(dir, listExecutables(dir));
+                changed = true;
+            }
+        }
+        if (changed) {
+            List<String> names = new ArrayList<>();
+            for (List<String> dirNames : scannedNames.values()) {
+                names.addAll(dirNames);
+            }
+            index = new PrefixIndex(names);
+        }
+    }
+
+    private static List<String> listExecutables(String dir) {
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(Paths.get(dir.isEmpty() ? "." : dir))) {
+            for (Path entry : entries) {
+                if (Files.isRegularFile(entry) && Files.isExecutable(entry)) {
+                    names.add(entry.getFileName().toString());
+                }
             }
+        } catch (IOException | RuntimeException e) {
+            // missing or unreadable PATH entry
         }
+        return names;
     }
 }
 
 public class Main {
     public static void main(String[] args) throws IOException {
+        ShellOutput.install();
         CommandHandler commandHandler = new CommandHandler();
 
+        // -i: interactive even without a terminal (JLine falls back to a dumb
+        // terminal); used for AOT training runs
+        if (args.length > 0 && args[0].equals("-i")) {
+            InteractiveShell.run(commandHandler);
+            return;
+        }
+
+        // -c "command": run one line and exit
+        if (args.length > 0 && args[0].equals("-c")) {
+            if (args.length < 2) {
+                System.err.println("-c: option requires an argument");
+                System.exit(2);
+            }
+            System.exit(ScriptRunner.run(commandHandler, new BufferedReader(new StringReader(args[1]))));
+        }
+
+        // script file mode
+        if (args.length > 0) {
+            BufferedReader script;
+            try {
+                script = Files.newBufferedReader(Paths.get(args[0]), Charset.defaultCharset());
+            } catch (IOException e) {
+                System.err.println(args[0] + ": No such file or directory");
+                System.exit(127);
+                return;
+            }
+            System.exit(ScriptRunner.run(commandHandler, script));
+        }
+
+        // piped or redirected stdin: no line editing needed, so JLine (and its
+        // terminal detection) is never touched
+        Console console = System.console();
+        if (console == null || !console.isTerminal()) {
+            System.exit(ScriptRunner.run(commandHandler, new BufferedReader(
+                    new InputStreamReader(System.in, Charset.defaultCharset()), StreamTransfer.BUFFER_SIZE)));
+        }
+
+        InteractiveShell.run(commandHandler);
+    }
+}
+
+// The JLine-driven prompt loop. Kept in its own class so the JLine classes are
+// only loaded when the shell is actually interactive.
+class InteractiveShell {
+    private static final int JLINE_HISTORY_SEED = 500;
+
+    static void run(CommandHandler commandHandler) throws IOException {
         Terminal terminal = TerminalBuilder.builder().build();
-        BuiltinCompleter completer = new BuiltinCompleter();
+        ShellOutput.attach(terminal.output(), terminal.encoding());
+        BuiltinCompleter completer = new BuiltinCompleter(
+                new CommandCompletionIndex(commandHandler.getCommands(), commandHandler.getPathSearcher()),
+                commandHandler.getShellState());
         // 9. import org.jline.reader.impl.DefaultParser; (Need to add import at top
         // first, but user asked me to guide them, not just write. But I can update
         // file.)
@@ -52,8 +341,27 @@ public class Main {
         LineReader lineReader = LineReaderBuilder.builder().terminal(terminal).completer(completer).parser(parser)
                 .build();
 
+        // seed JLine's in-memory history (arrow keys, ctrl-r) with the tail of
+        // $HISTFILE; the full file is only loaded if `history` asks for it
+        CommandHistory history = commandHandler.getShellState().getHistory();
+        lineReader.getHistory().attach(lineReader);
+        for (String line : history.readFileTail(JLINE_HISTORY_SEED)) {
+            lineReader.getHistory().add(line);
+        }
+
+        // here-document bodies are read at a secondary prompt; ^C or ^D ends one
+        LineSource continuation = () -> {
+            ShellOutput.flush();
+            try {
+                return lineReader.readLine("> ");
+            } catch (UserInterruptException | EndOfFileException e) {
+                return null;
+            }
+        };
+
         while (true) {
             String input = null;
+            ShellOutput.flush();
             try {
                 input = lineReader.readLine("$ ");
             } catch (UserInterruptException e) {
@@ -62,8 +370,49 @@ public class Main {
                 break;
             }
             // System.out.println("DEBUG: RAW INPUT = |" + input + "|");
-            commandHandler.handleCommand(input);
+            if (!input.isBlank()) {
+                history.record(input);
+            }
+            commandHandler.handleCommand(input, continuation);
+            commandHandler.reportFinishedJobs();
+        }
+        ShellOutput.flush();
+    }
+}
+
+// Non-interactive mode (-c, script files, piped stdin): lines go straight from
+// a buffered reader into CommandHandler. With -Dshell.batch.stats=true the
+// command count and rate are reported on stderr when the shell exits.
+class ScriptRunner {
+    private static final boolean STATS = Boolean.getBoolean("shell.batch.stats");
+
+    private ScriptRunner() {
+    }
+
+    // Runs every line and returns the status of the last command run
+    static int run(CommandHandler commandHandler, BufferedReader reader) throws IOException {
+        long start = System.nanoTime();
+        long[] commands = new long[1];
+        if (STATS) {
+            // a hook rather than code after the loop, so a script ending in `exit` still
+            // reports
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> report(commands[0], System.nanoTime() - start)));
+        }
+        try (reader) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                commands[0]++;
+                commandHandler.handleCommand(line, reader::readLine);
+            }
         }
+        ShellOutput.flush();
+        return commandHandler.getShellState().getLastStatus();
+    }
+
+    private static void report(long commands, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.err.printf("%d commands in %.3f s (%.1f commands/s)%n", commands, seconds,
+                seconds > 0 ? commands / seconds : 0.0);
     }
 }
 
@@ -72,393 +421,5210 @@ class RedirectionContext {
     boolean appendStdout;
     File stderrFile;
     boolean appendStderr;
+    // < file
+    File stdinFile;
+    // the `< file` target as written, for messages, once stdinFile has been
+    // resolved against the shell's directory
+    String stdinName;
+    // <<< word or << delimiter
+    HereDocument hereDocument;
+    // 2>&1 (and &>): stderr goes wherever stdout goes
+    boolean stderrToStdout;
+    // >&2: stdout goes wherever stderr goes
+    boolean stdoutToStderr;
+    // `>&2 2>file`: stdout stays on the shell's own stderr while stderr goes
+    // to the file
+    boolean stdoutToOriginalStderr;
+    // set when a builtin runs as a pipeline stage: stdin (if any) is the upstream
+    // stage's output. Also set for a here-document, for any stage.
+    InputStream stdin;
+
+    // sinks are opened once per command and closed by whoever ran it
+    private OutputSink stdoutSink;
+    private OutputSink stderrSink;
 
     RedirectionContext() {
         this.stdoutFile = null;
         this.appendStdout = false;
         this.stderrFile = null;
         this.appendStderr = false;
+        this.stdin = null;
     }
-}
 
-interface Command {
-    // void execute(String arguments); // default implementation where stdoutFile is
-    // null or not necessary
-    // void execute(String arguments, File stdoutFile, File stderrFile);
-    void execute(String arguments, RedirectionContext context);
+    OutputSink stdout() {
+        if (stdoutToStderr && !stderrToStdout) {
+            return stderr();
+        }
+        if (stdoutSink == null) {
+            // the console sink, as for a plain `>&2`
+            stdoutSink = openSink(stdoutToOriginalStderr ? null : stdoutFile, appendStdout);
+        }
+        return stdoutSink;
+    }
 
-    // default void execute(String arguments) {
-    // execute(arguments, null);
-    // }
+    OutputSink stderr() {
+        if (stderrToStdout) {
+            return stdout();
+        }
+        if (stderrSink == null) {
+            stderrSink = openSink(stderrFile, appendStderr);
+        }
+        return stderrSink;
+    }
 
-    default void writestdoutFile(String content, RedirectionContext context) {
-        if (context.stdoutFile != null) {
-            try (PrintWriter writer = new PrintWriter(new FileWriter(context.stdoutFile, context.appendStdout))) {
-                writer.println(content);
+    String stdinName() {
+        return stdinName != null ? stdinName : stdinFile.getPath();
+    }
+
+    // whether stdin comes from a redirection rather than the previous stage
+    boolean hasOwnInput() {
+        return stdinFile != null || hereDocument != null;
+    }
+
+    // Routes stdout into a stream (a pipeline pipe) unless it is redirected
+    void pipeStdout(OutputStream out) {
+        if (stdoutFile == null && !stdoutToStderr && !stdoutToOriginalStderr) {
+            stdoutSink = OutputSink.toStream(out);
+        }
+    }
+
+    // Opens (and truncates, unless appending) the redirection targets up front, so
+    // the files exist even if the command never writes to them, and opens a
+    // `< file` input. Returns false (after reporting) if one could not be opened.
+    boolean open() {
+        if (stdinFile != null && stdin == null) {
+            try {
+                stdin = Files.newInputStream(stdinFile.toPath());
             } catch (IOException e) {
-                System.err.println("Error redirecting output: " + e.getMessage());
+                stderr().println(stdinName() + ": No such file or directory");
+                return false;
             }
-        } else {
-            System.out.println(content);
         }
+        return stdout() != OutputSink.DISCARD && stderr() != OutputSink.DISCARD;
     }
 
-    // rigth now not needed but can be used later.
-    default void writestderrFile(String content, RedirectionContext context) {
-        if (context.stderrFile != null) {
-            try (PrintWriter writer = new PrintWriter(new FileWriter(context.stderrFile, context.appendStderr))) {
-                writer.println(content);
-            } catch (IOException e) {
-                System.err.println("Error redirecting output: " + e.getMessage());
+    void close() {
+        if (stdoutSink != null) {
+            stdoutSink.close();
+        }
+        if (stderrSink != null) {
+            stderrSink.close();
+        }
+        if (stdinFile != null && stdin != null) {
+            try {
+                stdin.close();
+            } catch (IOException ignored) {
             }
+        }
+    }
+
+    // Sets up a child's stdin, stdout and stderr from the redirections. Files map
+    // straight onto ProcessBuilder redirects, so their data never passes through
+    // the JVM. stdout is only set when redirected; the caller decides otherwise.
+    void applyTo(ProcessBuilder pb) throws IOException {
+        if (stdinFile != null) {
+            pb.redirectInput(ProcessBuilder.Redirect.from(stdinFile));
+        }
+        if (stdoutFile != null) {
+            pb.redirectOutput(appendStdout ? ProcessBuilder.Redirect.appendTo(stdoutFile)
+                    : ProcessBuilder.Redirect.to(stdoutFile));
+        }
+        if (stderrFile != null) {
+            pb.redirectError(appendStderr ? ProcessBuilder.Redirect.appendTo(stderrFile)
+                    : ProcessBuilder.Redirect.to(stderrFile));
         } else {
-            System.out.println(content);
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+        }
+        if (stderrToStdout) {
+            pb.redirectErrorStream(true);
+        } else if (stdoutToStderr && stderrFile != null) {
+            // no dup() in ProcessBuilder: open the file twice, both in append mode
+            // so the writes interleave instead of overwriting each other
+            if (!appendStderr) {
+                Files.newOutputStream(stderrFile.toPath()).close();
+            }
+            pb.redirectOutput(ProcessBuilder.Redirect.appendTo(stderrFile));
+            pb.redirectError(ProcessBuilder.Redirect.appendTo(stderrFile));
+        }
+        if (pumpsStdoutToStderr()) {
+            // pumped to the shell's stderr by whoever starts the process
+            pb.redirectOutput(ProcessBuilder.Redirect.PIPE);
+        }
+    }
+
+    // whether applyTo leaves stdout on a pipe the shell has to copy to stderr
+    boolean pumpsStdoutToStderr() {
+        return stdoutToStderr && !stderrToStdout && stderrFile == null || stdoutToOriginalStderr;
+    }
+
+    private static OutputSink openSink(File file, boolean append) {
+        if (file == null) {
+            return OutputSink.console();
+        }
+        try {
+            return OutputSink.toFile(file, append);
+        } catch (IOException e) {
+            System.err.println("Error redirecting output: " + e.getMessage());
+            return OutputSink.DISCARD;
         }
     }
 }
 
-// ShellState encapsulates mutable shell-wide state like the current working
-// directory
-class ShellState {
-    private File currentDirectory;
+// Where a command line's continuation lines (here-document bodies) come from:
+// the script being run or the terminal. Returns null at end of input.
+interface LineSource {
+    LineSource NONE = () -> null;
 
-    ShellState(File initial) {
-        this.currentDirectory = initial;
+    String readLine() throws IOException;
+}
+
+// A here-string (<<< word) or here-document (<< delimiter, <<- to strip leading
+// tabs) as parsed; part of a cached plan, so immutable. A here-document body is
+// expanded unless the delimiter was quoted.
+final class HereDocument {
+    final String word;
+    final boolean heredoc;
+    final boolean stripTabs;
+    final boolean expand;
+
+    HereDocument(String word, boolean heredoc, boolean stripTabs, boolean expand) {
+        this.word = word;
+        this.heredoc = heredoc;
+        this.stripTabs = stripTabs;
+        this.expand = expand;
     }
 
-    public File getCurrentDirectory() {
-        return currentDirectory;
+    // stdin for one run of the command
+    InputStream open(LineSource source, ShellState state) {
+        if (!heredoc) {
+            return new ByteArrayInputStream((Expansion.value(word, state) + "\n").getBytes());
+        }
+        return new HereDocumentInput(this, source, state);
     }
+}
 
-    public void setCurrentDirectory(File newDir) {
-        this.currentDirectory = newDir;
+// A here-document body streamed from the input a line at a time as the
+// command reads it, so a long body is never held in memory. Whatever the
+// command leaves unread is consumed by drain(), which leaves the input just
+// past the delimiter line.
+class HereDocumentInput extends InputStream {
+    private final HereDocument document;
+    private final LineSource source;
+    private final ShellState state;
+    private byte[] line = new byte[0];
+    private int position;
+    private boolean ended;
+
+    HereDocumentInput(HereDocument document, LineSource source, ShellState state) {
+        this.document = document;
+        this.source = source;
+        this.state = state;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == line.length && !nextLine()) {
+            return -1;
+        }
+        return line[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (position == line.length && !nextLine()) {
+            return -1;
+        }
+        int count = Math.min(length, line.length - position);
+        System.arraycopy(line, position, buffer, offset, count);
+        position += count;
+        return count;
+    }
+
+    // Reads (and discards) the rest of the body
+    void drain() throws IOException {
+        while (nextLine()) {
+            position = line.length;
+        }
+    }
+
+    // Reads the whole body ahead, so the command can run while the input is
+    // used for something else (a background job)
+    InputStream preload() throws IOException {
+        return new ByteArrayInputStream(readAllBytes());
+    }
+
+    private boolean nextLine() throws IOException {
+        while (!ended) {
+            String text = source.readLine();
+            if (text == null) {
+                ended = true;
+                System.err.println("warning: here-document delimited by end-of-file (wanted `" + document.word
+                        + "')");
+                return false;
+            }
+            if (document.stripTabs) {
+                int start = 0;
+                while (start < text.length() && text.charAt(start) == '\t') {
+                    start++;
+                }
+                text = text.substring(start);
+            }
+            if (text.equals(document.word)) {
+                ended = true;
+                return false;
+            }
+            line = ((document.expand ? Expansion.text(text, state) : text) + "\n").getBytes();
+            position = 0;
+            if (line.length > 0) {
+                return true;
+            }
+        }
+        return false;
     }
 }
 
-class CommandHandler {
-    private final Map<String, Command> commands = new HashMap<>();
-    private final PathSearcher pathSearcher = new PathSearcher();
-    private final ExternalCommandExecutor externalCommandExecutor = new ExternalCommandExecutor();
-    private final ShellState shellState = new ShellState(new File(System.getProperty("user.dir")));
+// The shell's standard output: one bounded buffer shared by every builtin
+// writing to the console and by the shell's own messages (job notices, syntax
+// errors), in place of the line-flushing System.out. Nothing is flushed per
+// line; the buffer is written out when it fills and at the flush points:
+// before a prompt, before a process is started (children write straight to
+// the inherited fd, so pending output has to go first), before waiting on a
+// job, and on exit. The interactive shell attaches it to the JLine Terminal,
+// so prompts and command output go down one stream in order.
+// -Dshell.output.bufferSize sets the buffer size.
+final class ShellOutput {
+    static final int BUFFER_SIZE = Math.max(512, Integer.getInteger("shell.output.bufferSize", 64 * 1024));
 
-    public CommandHandler() {
-        commands.put("echo", new EchoCommand());
-        commands.put("exit", new ExitCommand());
-        commands.put("type", new TypeCommand(pathSearcher));
-        commands.put("pwd", new PwdCommand(shellState));
-        commands.put("cd", new CdCommand(shellState));
+    private static final ReentrantLock LOCK = new ReentrantLock();
+    private static final byte[] BUFFER = new byte[BUFFER_SIZE];
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+    private static int count;
+    private static OutputStream target = new FileOutputStream(FileDescriptor.out);
+    private static Charset charset = System.out.charset();
+    // ASCII is copied straight into the buffer when the charset encodes it as is
+    private static boolean asciiCompatible = isAsciiCompatible(charset);
+    // set once a write fails (stdout closed), after which output is dropped
+    private static boolean error;
+
+    static {
+        // embedders (benchmarks, scripts that never reach a flush point) still get
+        // their output
+        Runtime.getRuntime().addShutdownHook(new Thread(ShellOutput::flush, "shell-output-flush"));
     }
 
-    public String[] parseQuote(String str) {
-        List<String> args = new ArrayList<>();
-        StringBuilder currentArg = new StringBuilder();
-        boolean inSingleQuote = false;
-        boolean inDoubleQuote = false;
+    // Views for OutputSink. Neither buffers on its own, so their flush() is a
+    // no-op: only the flush points push the shared buffer out.
+    static final Writer WRITER = new Writer() {
+        @Override
+        public void write(char[] chars, int offset, int length) {
+            print(new String(chars, offset, length));
+        }
+
+        @Override
+        public void write(String text, int offset, int length) {
+            print(offset == 0 && length == text.length() ? text : text.substring(offset, offset + length));
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    static final OutputStream STREAM = new OutputStream() {
+        @Override
+        public void write(int b) {
+            ShellOutput.write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            ShellOutput.write(bytes, offset, length);
+        }
+    };
+
+    private ShellOutput() {
+    }
+
+    // Makes System.err flush the buffered stdout before each write, so the
+    // shell's error messages (time reports, spawn failures) keep their place
+    // relative to command output
+    static void install() {
+        System.setErr(new PrintStream(new FileOutputStream(FileDescriptor.err) {
+            @Override
+            public void write(int b) throws IOException {
+                ShellOutput.flush();
+                super.write(b);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                ShellOutput.flush();
+                super.write(bytes, offset, length);
+            }
+        }, true, System.err.charset()));
+    }
+
+    // Sends the output to `out` (the terminal) from now on
+    static void attach(OutputStream out, Charset encoding) {
+        LOCK.lock();
+        try {
+            flushBuffer();
+            target = out;
+            charset = encoding;
+            asciiCompatible = isAsciiCompatible(encoding);
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    static void println(String text) {
+        LOCK.lock();
+        try {
+            append(text);
+            append(LINE_SEPARATOR);
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    static void print(String text) {
+        LOCK.lock();
+        try {
+            append(text);
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    static void write(byte[] bytes, int offset, int length) {
+        LOCK.lock();
+        try {
+            if (length >= BUFFER_SIZE) {
+                // too big to be worth copying: pass it straight through
+                flushBuffer();
+                writeOut(bytes, offset, length);
+                return;
+            }
+            if (count + length > BUFFER_SIZE) {
+                flushBuffer();
+            }
+            System.arraycopy(bytes, offset, BUFFER, count, length);
+            count += length;
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    // A flush point: writes out everything buffered so far
+    static void flush() {
+        LOCK.lock();
+        try {
+            flushBuffer();
+            if (!error) {
+                target.flush();
+            }
+        } catch (IOException e) {
+            error = true;
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    static boolean checkError() {
+        return error;
+    }
+
+    private static void append(String text) {
+        int length = text.length();
+        if (!asciiCompatible || length >= BUFFER_SIZE) {
+            appendEncoded(text);
+            return;
+        }
+        if (count + length > BUFFER_SIZE) {
+            flushBuffer();
+        }
+        int start = count;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                // not plain ASCII after all: encode it properly
+                count = start;
+                appendEncoded(text);
+                return;
+            }
+            BUFFER[start + i] = (byte) c;
+        }
+        count = start + length;
+    }
+
+    private static void appendEncoded(String text) {
+        byte[] bytes = text.getBytes(charset);
+        if (count + bytes.length > BUFFER_SIZE) {
+            flushBuffer();
+        }
+        if (bytes.length >= BUFFER_SIZE) {
+            writeOut(bytes, 0, bytes.length);
+        } else {
+            System.arraycopy(bytes, 0, BUFFER, count, bytes.length);
+            count += bytes.length;
+        }
+    }
+
+    private static void flushBuffer() {
+        if (count > 0) {
+            writeOut(BUFFER, 0, count);
+            count = 0;
+        }
+    }
+
+    private static void writeOut(byte[] bytes, int offset, int length) {
+        if (error) {
+            return;
+        }
+        try {
+            target.write(bytes, offset, length);
+        } catch (IOException e) {
+            error = true;
+        }
+    }
+
+    private static boolean isAsciiCompatible(Charset charset) {
+        return charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII)
+                || charset.equals(StandardCharsets.ISO_8859_1);
+    }
+}
 
-        for (int i = 0; i < str.length(); i++) {
-            char c = str.charAt(i);
+// Line-oriented destination for builtin output: the console, a file opened
+// once for the whole command, or a pipe to the next pipeline stage. Output is
+// buffered and written out on close(). Write errors (e.g. a closed pipe) are
+// remembered rather than thrown, like PrintStream.
+class OutputSink implements Closeable {
+    static final OutputSink DISCARD = new OutputSink(Writer.nullWriter(), OutputStream.nullOutputStream(), null,
+            false);
+
+    private final Writer writer;
+    // the byte stream under the writer, for binary output; channel is set when
+    // the target is a file
+    private final OutputStream stream;
+    private final FileChannel channel;
+    private final boolean closeUnderlying;
+    // writes go to the shell-wide ShellOutput buffer
+    private final boolean console;
+    private boolean error;
+
+    private OutputSink(Writer writer, OutputStream stream, FileChannel channel, boolean closeUnderlying) {
+        this.writer = writer;
+        this.stream = stream;
+        this.channel = channel;
+        this.closeUnderlying = closeUnderlying;
+        this.console = writer == ShellOutput.WRITER;
+    }
+
+    static OutputSink console() {
+        return new OutputSink(ShellOutput.WRITER, ShellOutput.STREAM, null, false);
+    }
+
+    static OutputSink toStream(OutputStream out) {
+        return new OutputSink(new BufferedWriter(new OutputStreamWriter(out), StreamTransfer.BUFFER_SIZE), out, null,
+                true);
+    }
+
+    static OutputSink toFile(File file, boolean append) throws IOException {
+        OpenOption[] options = append
+                ? new OpenOption[] { StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.APPEND }
+                : new OpenOption[] { StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING };
+        FileChannel channel = FileChannel.open(file.toPath(), options);
+        OutputStream out = Channels.newOutputStream(channel);
+        return new OutputSink(new BufferedWriter(new OutputStreamWriter(out, Charset.defaultCharset()),
+                StreamTransfer.BUFFER_SIZE), out, channel, true);
+    }
+
+    void println(String content) {
+        if (console) {
+            // one locked write, so lines from concurrent jobs do not tear
+            ShellOutput.println(content);
+            return;
+        }
+        if (error) {
+            return;
+        }
+        try {
+            writer.write(content);
+            writer.write(System.lineSeparator());
+        } catch (IOException e) {
+            error = true;
+        }
+    }
+
+    // Raw bytes, written after any pending text so the order is kept
+    void write(byte[] bytes, int offset, int length) {
+        if (error) {
+            return;
+        }
+        try {
+            writer.flush();
+            stream.write(bytes, offset, length);
+        } catch (IOException e) {
+            error = true;
+        }
+    }
+
+    // Copies the rest of a file into the sink. File-to-file copies go through
+    // FileChannel.transferTo, so the bytes never enter the JVM.
+    void transferFrom(FileChannel source) throws IOException {
+        writer.flush();
+        if (channel != null) {
+            long position = source.position();
+            long size = source.size();
+            while (position < size) {
+                position += source.transferTo(position, size - position, channel);
+            }
+        } else {
+            StreamTransfer.copy(Channels.newInputStream(source), stream);
+        }
+    }
+
+    void transferFrom(InputStream in) throws IOException {
+        writer.flush();
+        StreamTransfer.copy(in, stream);
+    }
+
+    void flush() {
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            error = true;
+        }
+    }
+
+    boolean checkError() {
+        return console ? ShellOutput.checkError() : error;
+    }
+
+    @Override
+    public void close() {
+        flush();
+        if (closeUnderlying) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                error = true;
+            }
+        }
+    }
+}
+
+interface Command {
+    // void execute(String arguments); // default implementation where stdoutFile is
+    // null or not necessary
+    // void execute(String arguments, File stdoutFile, File stderrFile);
+    // Runs the command and returns its exit status: 0 for success, non-zero
+    // for failure, as for a process
+    int execute(String arguments, RedirectionContext context);
+
+    // Entry point used by the shell. Builtins that care about word boundaries
+    // (file names with spaces, ...) override this; the rest get the words joined.
+    default int execute(String[] args, RedirectionContext context) {
+        return execute(String.join(" ", args), context);
+    }
+
+    // default void execute(String arguments) {
+    // execute(arguments, null);
+    // }
+
+    default void writestdoutFile(String content, RedirectionContext context) {
+        context.stdout().println(content);
+    }
+
+    default void writestderrFile(String content, RedirectionContext context) {
+        context.stderr().println(content);
+    }
+}
+
+// ShellState encapsulates mutable shell-wide state like the current working
+// directory
+class ShellState {
+    private File currentDirectory;
+    // where `cd -` goes back to (OLDPWD), and the pushd/popd stack, top first
+    private File previousDirectory;
+    private final Deque<File> directoryStack = new ArrayDeque<>();
+    private final CanonicalPathCache canonicalPaths = new CanonicalPathCache(CanonicalPathCache.CAPACITY);
+    private final JobTable jobs = new JobTable();
+    private final CommandHistory history = CommandHistory.fromEnvironment();
+    private final ShellMetrics metrics = new ShellMetrics();
+    // exit status of the last foreground pipeline, $?
+    private int lastStatus;
+    // unexported shell variables; exported ones live in the environment
+    private final Map<String, String> shellVariables = new HashMap<>();
+    // replaced, never modified, so pipeline and job threads can read it freely
+    private volatile Environment environment = Environment.INHERITED;
+
+    ShellState(File initial) {
+        this.currentDirectory = initial;
+    }
+
+    public File getCurrentDirectory() {
+        return currentDirectory;
+    }
+
+    public void setCurrentDirectory(File newDir) {
+        this.previousDirectory = currentDirectory;
+        this.currentDirectory = newDir;
+    }
+
+    public File getPreviousDirectory() {
+        return previousDirectory;
+    }
+
+    public Deque<File> getDirectoryStack() {
+        return directoryStack;
+    }
+
+    public CanonicalPathCache getCanonicalPaths() {
+        return canonicalPaths;
+    }
+
+    public JobTable getJobs() {
+        return jobs;
+    }
+
+    public CommandHistory getHistory() {
+        return history;
+    }
+
+    public ShellMetrics getMetrics() {
+        return metrics;
+    }
+
+    public int getLastStatus() {
+        return lastStatus;
+    }
+
+    public void setLastStatus(int status) {
+        this.lastStatus = status;
+    }
+
+    public Environment getEnvironment() {
+        return environment;
+    }
+
+    // Value of a shell or environment variable, or null if unset
+    public String getVariable(String name) {
+        String value = shellVariables.get(name);
+        return value != null ? value : environment.get(name);
+    }
+
+    // NAME=value: updates the variable where it lives, so an exported variable
+    // stays exported
+    public void setVariable(String name, String value) {
+        if (environment.get(name) != null) {
+            environment = environment.with(name, value);
+        } else {
+            shellVariables.put(name, value);
+        }
+    }
+
+    // export NAME[=value]; with no value, exports the shell variable as it is
+    public void export(String name, String value) {
+        String local = shellVariables.remove(name);
+        if (value == null) {
+            value = local;
+        }
+        if (value != null) {
+            environment = environment.with(name, value);
+        }
+    }
+
+    public void unset(String name) {
+        shellVariables.remove(name);
+        if (environment.get(name) != null) {
+            environment = environment.without(name);
+        }
+    }
+}
+
+// The environment exported to child processes, as an immutable set of
+// changes against the JVM's own environment. Changing a variable makes a new
+// snapshot (copy-on-write); a snapshot with no changes is never applied to a
+// ProcessBuilder at all, so children simply inherit the JVM's environment.
+final class Environment {
+    static final Environment INHERITED = new Environment(Collections.emptyMap(), Collections.emptySet());
+
+    private final Map<String, String> overrides;
+    private final Set<String> removed;
+
+    private Environment(Map<String, String> overrides, Set<String> removed) {
+        this.overrides = overrides;
+        this.removed = removed;
+    }
+
+    String get(String name) {
+        String value = overrides.get(name);
+        if (value != null || removed.contains(name)) {
+            return value;
+        }
+        return System.getenv(name);
+    }
+
+    Environment with(String name, String value) {
+        Map<String, String> newOverrides = new HashMap<>(overrides);
+        if (value.equals(System.getenv(name))) {
+            newOverrides.remove(name);
+        } else {
+            newOverrides.put(name, value);
+        }
+        Set<String> newRemoved = removed;
+        if (removed.contains(name)) {
+            newRemoved = new HashSet<>(removed);
+            newRemoved.remove(name);
+        }
+        return new Environment(Collections.unmodifiableMap(newOverrides), Collections.unmodifiableSet(newRemoved));
+    }
+
+    Environment without(String name) {
+        Map<String, String> newOverrides = overrides;
+        if (overrides.containsKey(name)) {
+            newOverrides = new HashMap<>(overrides);
+            newOverrides.remove(name);
+        }
+        Set<String> newRemoved = removed;
+        if (System.getenv(name) != null) {
+            newRemoved = new HashSet<>(removed);
+            newRemoved.add(name);
+        }
+        return new Environment(Collections.unmodifiableMap(newOverrides), Collections.unmodifiableSet(newRemoved));
+    }
+
+    // every exported variable, sorted by name
+    SortedMap<String, String> toMap() {
+        SortedMap<String, String> all = new TreeMap<>(System.getenv());
+        all.keySet().removeAll(removed);
+        all.putAll(overrides);
+        return all;
+    }
+
+    // Applies the changes to a child's environment. ProcessBuilder starts from a
+    // copy of the JVM's environment, so only the differences need writing, and
+    // nothing at all (not even that copy) while there are none.
+    void applyTo(ProcessBuilder pb) {
+        if (overrides.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+        Map<String, String> env = pb.environment();
+        env.keySet().removeAll(removed);
+        env.putAll(overrides);
+    }
+}
+
+// Expands the parameter references the Lexer marked in a word: $NAME,
+// ${NAME}, $? and $$. Expansion happens when a pipeline is about to run, since
+// an earlier command on the same line (or an earlier run of a cached line)
+// may have changed the values.
+final class Expansion {
+    private Expansion() {
+    }
+
+    // whether the word has parameters or is a pattern, so has to go through
+    // fields() or value() before use
+    static boolean hasExpansions(String word) {
+        if (!word.isEmpty() && word.charAt(0) == Lexer.GLOB) {
+            return true;
+        }
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+            if (c == Lexer.PARAMETER || c == Lexer.QUOTED_PARAMETER) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Adds the fields a word expands to. Unquoted values are split on
+    // whitespace, and as with every word, empty fields are dropped. A field is a
+    // pattern for Glob to expand if the word was one or an unquoted value
+    // brought in a glob character; fields are built in pattern form (literal
+    // characters escaped) until that is known.
+    static void fields(String word, ShellState state, List<String> out) {
+        boolean pattern = !word.isEmpty() && word.charAt(0) == Lexer.GLOB;
+        boolean fieldPattern = pattern;
+        StringBuilder field = new StringBuilder();
+        for (int i = pattern ? 1 : 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+            if (c != Lexer.PARAMETER && c != Lexer.QUOTED_PARAMETER) {
+                if (!pattern && Glob.isSpecial(c)) {
+                    field.append('\\');
+                }
+                field.append(c);
+                continue;
+            }
+            int end = word.indexOf(Lexer.PARAMETER_END, i);
+            String value = lookup(word.substring(i + 1, end), state);
+            i = end;
+            for (int k = 0; k < value.length(); k++) {
+                char v = value.charAt(k);
+                if (c == Lexer.PARAMETER && Character.isWhitespace(v)) {
+                    fieldPattern = addField(field, fieldPattern, out) ? pattern : fieldPattern;
+                } else if (c == Lexer.PARAMETER && (v == '*' || v == '?' || v == '[')) {
+                    fieldPattern = true;
+                    field.append(v);
+                } else {
+                    if (Glob.isSpecial(v)) {
+                        field.append('\\');
+                    }
+                    field.append(v);
+                }
+            }
+        }
+        addField(field, fieldPattern, out);
+    }
+
+    // Ends a field, if there is one
+    private static boolean addField(StringBuilder field, boolean pattern, List<String> out) {
+        if (field.length() == 0) {
+            return false;
+        }
+        out.add(pattern ? Lexer.GLOB + field.toString() : Glob.unescape(field.toString()));
+        field.setLength(0);
+        return true;
+    }
+
+    // A word as written, without pattern matching: a pattern's escapes are
+    // removed, parameters are left for expansion
+    static String literal(String word) {
+        if (word.isEmpty() || word.charAt(0) != Lexer.GLOB) {
+            return word;
+        }
+        char[] chars = word.toCharArray();
+        return new String(chars, 1, Glob.unescape(chars, 1, chars.length));
+    }
+
+    // Expands a word without splitting or matching it (assignment values,
+    // redirection targets)
+    static String value(String word, ShellState state) {
+        word = literal(word);
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+            if (c == Lexer.PARAMETER || c == Lexer.QUOTED_PARAMETER) {
+                int end = word.indexOf(Lexer.PARAMETER_END, i);
+                result.append(lookup(word.substring(i + 1, end), state));
+                i = end;
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    // Expands the parameters in free text (a here-document line), where `$` has
+    // not been through the lexer; \$ and \\ are escapes
+    static String text(String line, ShellState state) {
+        if (line.indexOf('$') < 0 && line.indexOf('\\') < 0) {
+            return line;
+        }
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\\' && i + 1 < line.length() && (line.charAt(i + 1) == '$' || line.charAt(i + 1) == '\\')) {
+                result.append(line.charAt(++i));
+                continue;
+            }
+            int end = c == '$' ? Lexer.parameterEnd(line, i) : -1;
+            if (end < 0) {
+                result.append(c);
+                continue;
+            }
+            boolean braced = line.charAt(i + 1) == '{';
+            result.append(lookup(line.substring(braced ? i + 2 : i + 1, braced ? end - 1 : end), state));
+            i = end - 1;
+        }
+        return result.toString();
+    }
+
+    private static String lookup(String name, ShellState state) {
+        switch (name) {
+            case "?":
+                return Integer.toString(state.getLastStatus());
+            case "$":
+                return Long.toString(ProcessHandle.current().pid());
+            default:
+                String value = state.getVariable(name);
+                return value != null ? value : "";
+        }
+    }
+
+    // NAME=value, as a command word
+    static boolean isAssignment(String word) {
+        word = literal(word);
+        int eq = word.indexOf('=');
+        return eq > 0 && isName(word, 0, eq);
+    }
+
+    static boolean isName(String text, int start, int end) {
+        if (start == end || Character.isDigit(text.charAt(start))) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (!(c == '_' || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
+
+// Pathname expansion of the words the Lexer marked as patterns: `*`, `?` and
+// `[...]` within a path segment, and a `**` segment for any number of
+// directories (symlinked ones are not followed). Each segment is matched with
+// a PathMatcher against a directory listing from the DirectoryCache; a `**`
+// walk, and any other step into several directories, runs across the common
+// fork-join pool. Matches are relative to the shell's directory unless the
+// pattern is absolute, and come back sorted. A pattern matching nothing is
+// kept as written, and names starting with `.` only match a segment that
+// starts with one too, as in other shells.
+final class Glob {
+    private static final int MATCHER_CACHE_SIZE = 256;
+    private static final LinkOption[] NO_FOLLOW = { LinkOption.NOFOLLOW_LINKS };
+
+    private final DirectoryCache directories;
+    // compiled PathMatchers by segment, so a cached plan does not recompile them
+    private final ConcurrentHashMap<String, PathMatcher> matchers = new ConcurrentHashMap<>();
+
+    Glob(DirectoryCache directories) {
+        this.directories = directories;
+    }
+
+    // characters that are escaped in a pattern to be taken literally
+    static boolean isSpecial(char c) {
+        return c == '*' || c == '?' || c == '[' || c == ']' || c == '\\';
+    }
+
+    // Removes the escapes from chars[from, to) in place and returns the new
+    // length of the range
+    static int unescape(char[] chars, int from, int to) {
+        int w = from;
+        for (int r = from; r < to; r++) {
+            if (chars[r] == '\\' && r + 1 < to) {
+                r++;
+            }
+            chars[w++] = chars[r];
+        }
+        return w - from;
+    }
+
+    static String unescape(String pattern) {
+        if (pattern.indexOf('\\') < 0) {
+            return pattern;
+        }
+        char[] chars = pattern.toCharArray();
+        return new String(chars, 0, unescape(chars, 0, chars.length));
+    }
+
+    // The words a pattern (as marked by the Lexer) expands to
+    List<String> expand(String word, File directory) {
+        String pattern = word.charAt(0) == Lexer.GLOB ? word.substring(1) : word;
+        if (!isPattern(pattern)) {
+            return List.of(unescape(pattern));
+        }
+        boolean absolute = pattern.startsWith("/");
+        // a trailing / only matches directories
+        boolean directoriesOnly = pattern.endsWith("/");
+        List<String> segments = new ArrayList<>();
+        for (String segment : pattern.split("/")) {
+            if (!segment.isEmpty()) {
+                segments.add(segment);
+            }
+        }
+        List<String> matches = new ArrayList<>(match(absolute ? Paths.get("/") : directory.toPath(),
+                absolute ? "/" : "", segments, 0, directoriesOnly));
+        if (matches.isEmpty()) {
+            return List.of(unescape(pattern));
+        }
+        Collections.sort(matches);
+        return matches;
+    }
+
+    // The matches of segments[index..] under `dir`, which is written `prefix`
+    private List<String> match(Path dir, String prefix, List<String> segments, int index, boolean directoriesOnly) {
+        String segment = segments.get(index);
+        boolean last = index == segments.size() - 1;
+        if (segment.equals("**")) {
+            return matchRecursive(dir, prefix, segments, index, directoriesOnly);
+        }
+        if (!isPattern(segment)) {
+            String name = unescape(segment);
+            Path child = dir.resolve(name);
+            if (!last) {
+                return match(child, prefix + name + "/", segments, index + 1, directoriesOnly);
+            }
+            boolean exists = directoriesOnly ? Files.isDirectory(child) : Files.exists(child, NO_FOLLOW);
+            return exists ? List.of(prefix + name + (directoriesOnly ? "/" : "")) : List.of();
+        }
+
+        DirectoryCache.Listing listing = directories.list(dir);
+        PathMatcher matcher = matcher(segment);
+        boolean dotted = segment.startsWith(".");
+        // only directories can hold the rest of the pattern
+        boolean needDirectory = !last || directoriesOnly;
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < listing.size(); i++) {
+            String name = listing.name(i);
+            if ((dotted || name.charAt(0) != '.') && matcher.matches(Paths.get(name))
+                    && (!needDirectory || listing.isDirectory(i, true))) {
+                names.add(name);
+            }
+        }
+        if (last) {
+            names.replaceAll(name -> prefix + name + (directoriesOnly ? "/" : ""));
+            return names;
+        }
+        return descend(dir, prefix, names, segments, index + 1, directoriesOnly);
+    }
+
+    // `**`: the rest of the pattern matched here and in every subdirectory. As
+    // the last segment it matches every name below `dir`.
+    private List<String> matchRecursive(Path dir, String prefix, List<String> segments, int index,
+            boolean directoriesOnly) {
+        boolean last = index == segments.size() - 1;
+        DirectoryCache.Listing listing = directories.list(dir);
+        List<String> subdirectories = new ArrayList<>();
+        List<String> matches = new ArrayList<>();
+        for (int i = 0; i < listing.size(); i++) {
+            String name = listing.name(i);
+            if (name.charAt(0) == '.') {
+                continue;
+            }
+            boolean isDirectory = listing.isDirectory(i, false);
+            if (isDirectory) {
+                subdirectories.add(name);
+            }
+            if (last && (!directoriesOnly || listing.isDirectory(i, true))) {
+                matches.add(prefix + name + (directoriesOnly ? "/" : ""));
+            }
+        }
+        if (!last) {
+            matches.addAll(match(dir, prefix, segments, index + 1, directoriesOnly));
+        }
+        matches.addAll(descend(dir, prefix, subdirectories, segments, index, directoriesOnly));
+        return matches;
+    }
+
+    // Matches segments[index..] in each of the named subdirectories, in parallel
+    // when there are several
+    private List<String> descend(Path dir, String prefix, List<String> names, List<String> segments, int index,
+            boolean directoriesOnly) {
+        if (names.isEmpty()) {
+            return List.of();
+        }
+        if (names.size() == 1) {
+            String name = names.get(0);
+            return match(dir.resolve(name), prefix + name + "/", segments, index, directoriesOnly);
+        }
+        return names.parallelStream()
+                .flatMap(name -> match(dir.resolve(name), prefix + name + "/", segments, index, directoriesOnly)
+                        .stream())
+                .toList();
+    }
+
+    private PathMatcher matcher(String segment) {
+        PathMatcher matcher = matchers.get(segment);
+        if (matcher == null) {
+            if (matchers.size() >= MATCHER_CACHE_SIZE) {
+                matchers.clear();
+            }
+            matcher = compile(segment);
+            matchers.put(segment, matcher);
+        }
+        return matcher;
+    }
+
+    // PathMatcher's glob syntax differs from the shell's in {a,b} groups (taken
+    // literally here) and [^...] (written [!...])
+    private static PathMatcher compile(String segment) {
+        StringBuilder glob = new StringBuilder(segment.length() + 8);
+        boolean inBracket = false;
+        for (int i = 0; i < segment.length(); i++) {
+            char c = segment.charAt(i);
+            if (c == '\\' && i + 1 < segment.length()) {
+                glob.append(c).append(segment.charAt(++i));
+            } else if (c == '{' || c == '}') {
+                glob.append('\\').append(c);
+            } else if (c == '[' && !inBracket) {
+                inBracket = true;
+                glob.append(c);
+                if (i + 1 < segment.length() && segment.charAt(i + 1) == '^') {
+                    glob.append('!');
+                    i++;
+                }
+            } else {
+                inBracket &= c != ']';
+                glob.append(c);
+            }
+        }
+        try {
+            return FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        } catch (PatternSyntaxException e) {
+            String name = unescape(segment);
+            return path -> path.toString().equals(name);
+        }
+    }
+
+    // whether the (escaped) text has an unescaped *, ? or a [ with a closing ]
+    static boolean isPattern(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '*' || c == '?' || (c == '[' && text.indexOf(']', i + 2) > 0)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
+
+// Short-lived cache of directory listings for Glob, keyed by directory and
+// checked against its mtime, so a script globbing the same large directory
+// over and over lists it once. An entry is also dropped after
+// -Dshell.glob.cacheMillis (default 2000), which bounds how long a change
+// within the mtime's granularity can go unseen. -Dshell.glob.cacheSize sets
+// how many directories are kept (0 disables the cache).
+class DirectoryCache {
+    static final int CAPACITY = Integer.getInteger("shell.glob.cacheSize", 256);
+    static final long TTL_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("shell.glob.cacheMillis", 2000));
+
+    private static final byte UNKNOWN = 0;
+    private static final byte OTHER = 1;
+    private static final byte DIRECTORY = 2;
+    private static final byte LINK_TO_DIRECTORY = 3;
+
+    private final int capacity;
+    private final ShellMetrics metrics;
+    private final LinkedHashMap<Path, Listing> listings;
+
+    // The sorted names in a directory. Entry types are looked up (and kept) as
+    // they are asked for; concurrent lookups of the same entry just repeat the stat.
+    static final class Listing {
+        private final Path dir;
+        private final FileTime modified;
+        private final long loadedAt;
+        private final String[] names;
+        private final byte[] types;
+
+        Listing(Path dir, FileTime modified, long loadedAt, String[] names) {
+            this.dir = dir;
+            this.modified = modified;
+            this.loadedAt = loadedAt;
+            this.names = names;
+            this.types = new byte[names.length];
+        }
+
+        int size() {
+            return names.length;
+        }
+
+        String name(int i) {
+            return names[i];
+        }
+
+        boolean isDirectory(int i, boolean followLinks) {
+            byte type = types[i];
+            if (type == UNKNOWN) {
+                type = OTHER;
+                Path path = dir.resolve(names[i]);
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class,
+                            LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isDirectory()) {
+                        type = DIRECTORY;
+                    } else if (attributes.isSymbolicLink() && Files.isDirectory(path)) {
+                        type = LINK_TO_DIRECTORY;
+                    }
+                } catch (IOException e) {
+                    // gone since it was listed
+                }
+                types[i] = type;
+            }
+            return type == DIRECTORY || (followLinks && type == LINK_TO_DIRECTORY);
+        }
+    }
+
+    DirectoryCache(int capacity, ShellMetrics metrics) {
+        this.capacity = capacity;
+        this.metrics = metrics;
+        this.listings = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Listing> eldest) {
+                return size() > DirectoryCache.this.capacity;
+            }
+        };
+    }
+
+    // The listing of `dir`; empty if it cannot be read
+    Listing list(Path dir) {
+        FileTime modified;
+        try {
+            modified = Files.getLastModifiedTime(dir);
+        } catch (IOException e) {
+            return new Listing(dir, null, 0, new String[0]);
+        }
+        long now = System.nanoTime();
+        if (capacity > 0) {
+            Listing cached;
+            synchronized (listings) {
+                cached = listings.get(dir);
+            }
+            if (cached != null && cached.modified.equals(modified) && now - cached.loadedAt < TTL_NANOS) {
+                metrics.globHits.increment();
+                return cached;
+            }
+        }
+        metrics.globMisses.increment();
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                names.add(entry.getFileName().toString());
+            }
+        } catch (IOException | RuntimeException e) {
+            // unreadable: nothing matches in it
+        }
+        String[] sorted = names.toArray(new String[0]);
+        Arrays.sort(sorted);
+        Listing listing = new Listing(dir, modified, now, sorted);
+        if (capacity > 0) {
+            synchronized (listings) {
+                listings.put(dir, listing);
+            }
+        }
+        return listing;
+    }
+}
+
+// Latency histogram with power-of-two microsecond buckets (bucket k holds
+// values below 2^k us). Lock-free, so pipeline stages can record concurrently.
+class LatencyHistogram {
+    private static final int BUCKETS = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    long count() {
+        return count.sum();
+    }
+
+    long meanNanos() {
+        long n = count.sum();
+        return n == 0 ? 0 : totalNanos.sum() / n;
+    }
+
+    long maxNanos() {
+        return maxNanos.get();
+    }
+
+    // upper bound of the bucket holding the given quantile
+    long quantileNanos(double quantile) {
+        long n = count.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min((1L << i) * 1000, maxNanos());
+            }
+        }
+        return maxNanos();
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        totalNanos.reset();
+        maxNanos.reset();
+    }
+}
+
+// Where the time goes on the command hot path, for `shellstats`: one histogram
+// per phase plus how often each command name was run
+class ShellMetrics {
+    final LatencyHistogram parse = new LatencyHistogram();
+    final LatencyHistogram lookup = new LatencyHistogram();
+    final LatencyHistogram spawn = new LatencyHistogram();
+    final LatencyHistogram wait = new LatencyHistogram();
+    final LatencyHistogram builtin = new LatencyHistogram();
+    // plan cache lookups; an invalidation drops every cached plan
+    final LongAdder planHits = new LongAdder();
+    final LongAdder planMisses = new LongAdder();
+    final LongAdder planInvalidations = new LongAdder();
+    // directory listings for globs, from the DirectoryCache or from disk
+    final LongAdder globHits = new LongAdder();
+    final LongAdder globMisses = new LongAdder();
+    private final ConcurrentHashMap<String, LongAdder> commandCounts = new ConcurrentHashMap<>();
+
+    void countCommand(String commandName) {
+        commandCounts.computeIfAbsent(commandName, k -> new LongAdder()).increment();
+    }
+
+    Map<String, LatencyHistogram> phases() {
+        Map<String, LatencyHistogram> phases = new LinkedHashMap<>();
+        phases.put("parse", parse);
+        phases.put("lookup", lookup);
+        phases.put("spawn", spawn);
+        phases.put("wait", wait);
+        phases.put("builtin", builtin);
+        return phases;
+    }
+
+    Map<String, Long> commandCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        commandCounts.forEach((name, adder) -> counts.put(name, adder.sum()));
+        return counts;
+    }
+
+    void reset() {
+        for (LatencyHistogram histogram : phases().values()) {
+            histogram.reset();
+        }
+        planHits.reset();
+        planMisses.reset();
+        planInvalidations.reset();
+        globHits.reset();
+        globMisses.reset();
+        commandCounts.clear();
+    }
+}
+
+// CPU time of a process as {user, sys} nanoseconds. Read from /proc on Linux;
+// elsewhere ProcessHandle.Info only has a total, reported as user time. Null
+// once the process is gone.
+final class ProcessCpu {
+    // USER_HZ, which is 100 on every mainstream Linux configuration
+    private static final long NANOS_PER_TICK = 10_000_000L;
+
+    private ProcessCpu() {
+    }
+
+    static long[] sample(ProcessHandle process) {
+        try {
+            String stat = new String(Files.readAllBytes(Paths.get("/proc/" + process.pid() + "/stat")),
+                    StandardCharsets.US_ASCII);
+            // fields after the parenthesised command name; utime and stime are the
+            // 14th and 15th fields overall
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            return new long[] { Long.parseLong(fields[11]) * NANOS_PER_TICK,
+                    Long.parseLong(fields[12]) * NANOS_PER_TICK };
+        } catch (IOException | RuntimeException e) {
+            return process.info().totalCpuDuration().map(d -> new long[] { d.toNanos(), 0 }).orElse(null);
+        }
+    }
+}
+
+// JFR event per command line run by the shell
+@Name("shell.CommandExecution")
+@Label("Shell Command")
+@Category("Shell")
+class CommandExecutionEvent extends Event {
+    @Label("Command Line")
+    String line;
+}
+
+// JFR event per external process started by the shell, with the time spent in
+// each phase
+@Name("shell.ProcessExecution")
+@Label("Shell Process")
+@Category("Shell")
+class ProcessExecutionEvent extends Event {
+    @Label("Command")
+    String command;
+
+    @Label("Executable")
+    String executable;
+
+    @Label("PID")
+    long pid;
+
+    @Label("Exit Code")
+    int exitCode;
+
+    @Label("Lookup Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long lookup;
+
+    @Label("Spawn Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long spawn;
+
+    @Label("Wait Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long waitTime;
+}
+
+// Command history: a bounded in-memory ring (HISTSIZE entries, numbered from
+// 1) backed by $HISTFILE.
+//
+// - Startup never reads the file. It is memory-mapped and its last HISTSIZE
+//   lines loaded on first use; only the bytes present at startup are read,
+//   so lines this session already appended are not loaded twice.
+// - New entries are appended to the file in batches by a background writer
+//   thread, so the prompt never waits on the disk.
+// - Substring search goes through a trigram index (built on first search):
+//   candidates come from the rarest trigram of the query, newest first.
+class CommandHistory {
+    static final int DEFAULT_SIZE = 50_000;
+
+    private final File file;
+    private final long initialFileSize;
+    private final String[] ring;
+    // sequence number the next entry gets; entries [oldest(), nextSeq) are live
+    private int nextSeq = 1;
+    private boolean loaded;
+    // entries up to this one have been written by `history -a`
+    private int appendedSeq;
+
+    private Map<Long, SeqList> trigrams;
+    private HistoryWriter writer;
+
+    CommandHistory(File file, int capacity) {
+        this.file = file;
+        this.initialFileSize = file == null ? 0 : file.length();
+        this.ring = new String[Math.max(1, capacity)];
+        this.loaded = file == null;
+    }
+
+    static CommandHistory fromEnvironment() {
+        String histFile = System.getenv("HISTFILE");
+        int size = DEFAULT_SIZE;
+        try {
+            String histSize = System.getenv("HISTSIZE");
+            if (histSize != null) {
+                size = Integer.parseInt(histSize.trim());
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        return new CommandHistory(histFile == null || histFile.isEmpty() ? null : new File(histFile), size);
+    }
+
+    public synchronized void record(String line) {
+        add(line);
+        if (file != null) {
+            if (writer == null) {
+                writer = new HistoryWriter(file);
+            }
+            writer.append(line);
+        }
+    }
+
+    public synchronized int oldest() {
+        ensureLoaded();
+        return Math.max(1, nextSeq - ring.length);
+    }
+
+    public synchronized int newest() {
+        ensureLoaded();
+        return nextSeq - 1;
+    }
+
+    public synchronized String get(int seq) {
+        ensureLoaded();
+        return seq >= oldest() && seq < nextSeq ? ring[(seq - 1) % ring.length] : null;
+    }
+
+    public synchronized void clear() {
+        ensureLoaded();
+        Arrays.fill(ring, null);
+        nextSeq = 1;
+        appendedSeq = 0;
+        trigrams = null;
+    }
+
+    // Sequence numbers of entries containing `text`, newest first, at most
+    // `limit` of them
+    public synchronized List<Integer> search(String text, int limit) {
+        ensureLoaded();
+        List<Integer> matches = new ArrayList<>();
+        int oldest = oldest();
+        if (text.length() < 3) {
+            for (int seq = nextSeq - 1; seq >= oldest && matches.size() < limit; seq--) {
+                if (get(seq).contains(text)) {
+                    matches.add(seq);
+                }
+            }
+            return matches;
+        }
+
+        ensureIndexed();
+        SeqList rarest = null;
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            SeqList list = trigrams.get(trigram(text, i));
+            if (list == null) {
+                return matches;
+            }
+            if (rarest == null || list.size < rarest.size) {
+                rarest = list;
+            }
+        }
+        for (int k = rarest.size - 1; k >= 0 && matches.size() < limit; k--) {
+            int seq = rarest.values[k];
+            if (seq < oldest) {
+                break;
+            }
+            if (get(seq).contains(text)) {
+                matches.add(seq);
+            }
+        }
+        return matches;
+    }
+
+    // history -r: appends every line of the file to the in-memory history
+    public synchronized void readFrom(File source) throws IOException {
+        ensureLoaded();
+        try (BufferedReader reader = Files.newBufferedReader(source.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isBlank()) {
+                    add(line);
+                }
+            }
+        }
+    }
+
+    // history -w: replaces the file with the in-memory history
+    public synchronized void writeTo(File target) throws IOException {
+        ensureLoaded();
+        writeRange(target, oldest(), false);
+        appendedSeq = nextSeq - 1;
+    }
+
+    // history -a: appends the entries added since the last -a
+    public synchronized void appendTo(File target) throws IOException {
+        ensureLoaded();
+        if (target.equals(file)) {
+            // the background writer already appends every entry here
+            flush();
+        } else {
+            writeRange(target, Math.max(appendedSeq + 1, oldest()), true);
+        }
+        appendedSeq = nextSeq - 1;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    // Waits until every recorded entry has reached $HISTFILE
+    public void flush() {
+        HistoryWriter current;
+        synchronized (this) {
+            current = writer;
+        }
+        if (current != null) {
+            current.flush();
+        }
+    }
+
+    // The last `count` lines the file held at startup, without loading the rest
+    public List<String> readFileTail(int count) {
+        if (file == null || initialFileSize == 0) {
+            return Collections.emptyList();
+        }
+        try {
+            return mapTail(count);
+        } catch (IOException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    private void add(String line) {
+        int seq = nextSeq++;
+        ring[(seq - 1) % ring.length] = line;
+        if (trigrams != null) {
+            index(seq, line);
+        }
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        // anything recorded before the load belongs after the file's entries
+        List<String> session = new ArrayList<>();
+        for (int seq = Math.max(1, nextSeq - ring.length); seq < nextSeq; seq++) {
+            session.add(ring[(seq - 1) % ring.length]);
+        }
+        nextSeq = 1;
+        for (String line : readFileTail(ring.length)) {
+            add(line);
+        }
+        // entries from the file are already "appended"
+        appendedSeq = nextSeq - 1;
+        for (String line : session) {
+            add(line);
+        }
+    }
+
+    private List<String> mapTail(int count) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = Math.min(initialFileSize, channel.size());
+            long start = Math.max(0, size - Integer.MAX_VALUE);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, size - start);
+            // walk back from the end to find where the last `count` lines begin
+            List<String> lines = new ArrayList<>();
+            int end = buffer.limit();
+            for (int i = buffer.limit() - 1; i >= -1 && lines.size() < count; i--) {
+                if (i == -1 || buffer.get(i) == '\n') {
+                    if (end > i + 1) {
+                        byte[] bytes = new byte[end - i - 1];
+                        buffer.get(i + 1, bytes);
+                        String line = new String(bytes, StandardCharsets.UTF_8);
+                        if (!line.isBlank()) {
+                            lines.add(line);
+                        }
+                    }
+                    end = i;
+                }
+            }
+            Collections.reverse(lines);
+            return lines;
+        }
+    }
+
+    private void writeRange(File target, int fromSeq, boolean append) throws IOException {
+        OpenOption[] options = append
+                ? new OpenOption[] { StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.APPEND }
+                : new OpenOption[] { StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING };
+        try (BufferedWriter out = Files.newBufferedWriter(target.toPath(), StandardCharsets.UTF_8, options)) {
+            for (int seq = fromSeq; seq < nextSeq; seq++) {
+                out.write(get(seq));
+                out.write('\n');
+            }
+        }
+    }
+
+    private void ensureIndexed() {
+        if (trigrams != null) {
+            return;
+        }
+        trigrams = new HashMap<>();
+        for (int seq = oldest(); seq < nextSeq; seq++) {
+            index(seq, get(seq));
+        }
+    }
+
+    private void index(int seq, String line) {
+        int oldest = oldest();
+        for (int i = 0; i + 3 <= line.length(); i++) {
+            SeqList list = trigrams.computeIfAbsent(trigram(line, i), k -> new SeqList());
+            list.add(seq, oldest);
+        }
+    }
+
+    private static long trigram(String s, int i) {
+        return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+    }
+
+    // ascending sequence numbers for one trigram; entries that fell out of the
+    // ring are dropped once they make up half the list
+    private static final class SeqList {
+        int[] values = new int[4];
+        int size;
+
+        void add(int seq, int oldest) {
+            if (size > 0 && values[size - 1] == seq) {
+                return;
+            }
+            if (size == values.length) {
+                int live = size - lowerBound(oldest);
+                if (live <= size / 2) {
+                    System.arraycopy(values, size - live, values, 0, live);
+                    size = live;
+                } else {
+                    values = Arrays.copyOf(values, size * 2);
+                }
+            }
+            values[size++] = seq;
+        }
+
+        private int lowerBound(int seq) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (values[mid] < seq) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
+
+// Appends history lines to $HISTFILE from a daemon thread, a batch at a time.
+// The file is opened once in append mode and not fsync'd.
+class HistoryWriter {
+    private final File file;
+    private final BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+    // lines handed to append() and lines written so far, for flush()
+    private long queued;
+    private long written;
+    // set once a write fails: the writer thread has exited, so append() drops lines
+    private boolean failed;
+
+    HistoryWriter(File file) {
+        this.file = file;
+        Thread thread = new Thread(this::run, "history-writer");
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush));
+    }
+
+    synchronized void append(String line) {
+        if (failed) {
+            return;
+        }
+        queued++;
+        queue.add(line);
+    }
+
+    // Blocks until everything appended so far is written (or a write failed)
+    synchronized void flush() {
+        long target = queued;
+        while (written < target) {
+            try {
+                wait(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void run() {
+        List<String> batch = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                StringBuilder sb = new StringBuilder();
+                for (String line : batch) {
+                    sb.append(line).append('\n');
+                }
+                ByteBuffer bytes = StandardCharsets.UTF_8.encode(sb.toString());
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                markWritten(batch.size());
+                batch.clear();
+            }
+        } catch (IOException e) {
+            System.err.println("history: " + file + ": " + e.getMessage());
+            fail();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void markWritten(long lines) {
+        written += lines;
+        notifyAll();
+    }
+
+    // Stops queueing and unblocks flush() for good: nothing more will be written
+    private synchronized void fail() {
+        failed = true;
+        queue.clear();
+        written = queued;
+        notifyAll();
+    }
+}
+
+// A background pipeline started with `&`
+class Job {
+    final int id;
+    final String command;
+    final RunningPipeline pipeline;
+
+    Job(int id, String command, RunningPipeline pipeline) {
+        this.id = id;
+        this.command = command;
+        this.pipeline = pipeline;
+    }
+
+    boolean isDone() {
+        return pipeline.done.isDone();
+    }
+
+    String status() {
+        if (!isDone()) {
+            return "Running";
+        }
+        int exit = pipeline.exitValue();
+        return exit == 0 ? "Done" : "Exit " + exit;
+    }
+}
+
+// Background jobs by job number. Completion is observed through the
+// pipeline's future (ProcessHandle.onExit for external stages), which queues
+// the job for the "Done" notice printed before the next prompt; nothing polls.
+class JobTable {
+    private final TreeMap<Integer, Job> jobs = new TreeMap<>();
+    private final Queue<Job> finished = new ConcurrentLinkedQueue<>();
+
+    synchronized Job add(String command, RunningPipeline pipeline) {
+        int id = jobs.isEmpty() ? 1 : jobs.lastKey() + 1;
+        Job job = new Job(id, command, pipeline);
+        jobs.put(id, job);
+        pipeline.done.whenComplete((ignored, error) -> finished.add(job));
+        return job;
+    }
+
+    synchronized Job get(int id) {
+        return jobs.get(id);
+    }
+
+    // the job `fg`/`wait` use when none is named: the most recent one
+    synchronized Job current() {
+        return jobs.isEmpty() ? null : jobs.lastEntry().getValue();
+    }
+
+    synchronized List<Job> list() {
+        return new ArrayList<>(jobs.values());
+    }
+
+    synchronized void remove(Job job) {
+        jobs.remove(job.id);
+    }
+
+    // Removes and returns the jobs that finished since the last call
+    synchronized List<Job> reapFinished() {
+        List<Job> reaped = new ArrayList<>();
+        Job job;
+        while ((job = finished.poll()) != null) {
+            if (jobs.containsKey(job.id)) {
+                reaped.add(job);
+            }
+        }
+        reaped.sort(Comparator.comparingInt(j -> j.id));
+        return reaped;
+    }
+
+    // `[1]+  Running                 sleep 10 &`: + marks the current job, - the
+    // one before it
+    synchronized String format(Job job) {
+        Integer last = jobs.isEmpty() ? null : jobs.lastKey();
+        Integer previous = last == null ? null : jobs.lowerKey(last);
+        char marker = Integer.valueOf(job.id).equals(last) ? '+'
+                : Integer.valueOf(job.id).equals(previous) ? '-' : ' ';
+        String status = job.status();
+        return String.format("[%d]%c  %-24s%s", job.id, marker, status,
+                status.equals("Running") ? job.command + " &" : job.command);
+    }
+}
+
+// Supplies builtins from outside Main.java, so a site can ship its own
+// commands as a jar on the class path instead of forking the shell. The jar
+// lists its providers in META-INF/services/CommandProvider; a provider must
+// be a public class with a public no-argument constructor. Command lives in
+// the unnamed package, so providers and their commands must too.
+interface CommandProvider {
+    // Names of the commands this provider supplies
+    Collection<String> names();
+
+    // Creates the named command; called once, the first time it is used
+    Command create(String name, ShellState shellState);
+}
+
+// The one table of builtins: what dispatch runs, what `type` reports and what
+// completion offers. Entries are factories, and a command object is only
+// created the first time it is looked up. CommandProviders are found with
+// ServiceLoader the first time a name is not one of the shell's own (or the
+// whole table is listed), so a session using only the shell's builtins never
+// scans for them. Commands can be switched off and on with `disable` and
+// `enable`; a provider cannot replace a builtin the shell already has.
+class CommandRegistry {
+    private final ShellState shellState;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean providersLoaded;
+    // bumped when the set of enabled commands changes, for caches holding
+    // resolved commands (plans, completion); enable/disable and the provider
+    // scan may bump it from different threads
+    private final AtomicLong generation = new AtomicLong();
+
+    static final class Entry {
+        final String name;
+        // "shell", or the class name of the provider it came from
+        final String origin;
+        // an in-process CoreUtility: it stands in for the binary of the same
+        // name, so `type` and `enable` treat it as that binary, not a builtin
+        final boolean utility;
+        private final Supplier<Command> factory;
+        private volatile Command command;
+        private volatile boolean enabled = true;
+        private boolean failed;
+
+        Entry(String name, String origin, boolean utility, Supplier<Command> factory) {
+            this.name = name;
+            this.origin = origin;
+            this.utility = utility;
+            this.factory = factory;
+        }
+
+        boolean isEnabled() {
+            return enabled;
+        }
+
+        // The command, created on first use; null if its provider failed to create it
+        synchronized Command command() {
+            if (command == null && !failed) {
+                try {
+                    command = factory.get();
+                } catch (RuntimeException | LinkageError e) {
+                    failed = true;
+                    System.err.println(name + ": could not load builtin from " + origin + ": " + e);
+                }
+            }
+            return command;
+        }
+    }
+
+    CommandRegistry(ShellState shellState) {
+        this.shellState = shellState;
+    }
+
+    void register(String name, Supplier<Command> factory) {
+        entries.putIfAbsent(name, new Entry(name, "shell", false, factory));
+    }
+
+    void registerUtility(String name, Supplier<Command> factory) {
+        entries.putIfAbsent(name, new Entry(name, "shell", true, factory));
+    }
+
+    // The enabled command of that name, or null (run it from PATH instead)
+    Command get(String name) {
+        Entry entry = entry(name);
+        return entry != null && entry.enabled ? entry.command() : null;
+    }
+
+    // Whether the name is an enabled builtin (in-process utilities are not)
+    boolean isBuiltin(String name) {
+        Entry entry = entry(name);
+        return entry != null && entry.enabled && !entry.utility;
+    }
+
+    // Names of the enabled builtins
+    Set<String> names() {
+        loadProviders();
+        Set<String> names = new TreeSet<>();
+        for (Entry entry : entries.values()) {
+            if (entry.enabled && !entry.utility) {
+                names.add(entry.name);
+            }
+        }
+        return names;
+    }
+
+    // Every builtin, enabled or not, by name
+    List<Entry> entries() {
+        loadProviders();
+        List<Entry> all = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (!entry.utility) {
+                all.add(entry);
+            }
+        }
+        all.sort(Comparator.comparing(entry -> entry.name));
+        return all;
+    }
+
+    // Switches a builtin on or off; false if there is no such builtin
+    boolean setEnabled(String name, boolean enabled) {
+        Entry entry = entry(name);
+        if (entry == null || entry.utility) {
+            return false;
+        }
+        if (entry.enabled != enabled) {
+            entry.enabled = enabled;
+            generation.incrementAndGet();
+        }
+        return true;
+    }
+
+    long generation() {
+        return generation.get();
+    }
+
+    private Entry entry(String name) {
+        Entry entry = entries.get(name);
+        if (entry == null && !providersLoaded) {
+            loadProviders();
+            entry = entries.get(name);
+        }
+        return entry;
+    }
+
+    // Registers every provider's commands. The flag is only set once they are
+    // all in, so a lookup racing with the scan (a pipeline builtin on another
+    // thread) waits on the lock instead of missing a plugin command.
+    private synchronized void loadProviders() {
+        if (providersLoaded) {
+            return;
+        }
+        try {
+            registerProviders();
+        } finally {
+            providersLoaded = true;
+        }
+    }
+
+    private void registerProviders() {
+        Iterator<CommandProvider> providers = ServiceLoader.load(CommandProvider.class).iterator();
+        while (true) {
+            CommandProvider provider;
+            try {
+                if (!providers.hasNext()) {
+                    break;
+                }
+                provider = providers.next();
+            } catch (ServiceConfigurationError e) {
+                System.err.println("Error loading builtins: " + e.getMessage());
+                continue;
+            }
+            String origin = provider.getClass().getName();
+            for (String name : provider.names()) {
+                Entry entry = new Entry(name, origin, false, () -> provider.create(name, shellState));
+                if (entries.putIfAbsent(name, entry) != null) {
+                    System.err.println(name + ": builtin from " + origin + " ignored: already defined");
+                }
+            }
+            generation.incrementAndGet();
+        }
+    }
+}
+
+// enable [-a] [-n] [name ...] / disable [name ...]: switches builtins off
+// (after which the name runs from PATH again) and back on. With no names,
+// lists the enabled builtins as `enable name`, or all of them (disabled ones
+// as `enable -n name`) with -a.
+class EnableCommand implements Command {
+    private final CommandRegistry commands;
+    private final boolean enable;
+
+    EnableCommand(CommandRegistry commands, boolean enable) {
+        this.commands = commands;
+        this.enable = enable;
+    }
+
+    @Override
+    public int execute(String arguments, RedirectionContext context) {
+        return execute(arguments.isEmpty() ? new String[0] : arguments.split(" "), context);
+    }
+
+    @Override
+    public int execute(String[] args, RedirectionContext context) {
+        String commandName = enable ? "enable" : "disable";
+        boolean all = false;
+        boolean turnOn = enable;
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-") && args[i].length() > 1; i++) {
+            for (char c : args[i].substring(1).toCharArray()) {
+                if (c == 'a') {
+                    all = true;
+                } else if (c == 'n' && enable) {
+                    turnOn = false;
+                } else {
+                    writestderrFile(commandName + ": -" + c + ": invalid option", context);
+                    writestderrFile(commandName + ": usage: " + (enable ? "enable [-a] [-n] [name ...]"
+                            : "disable [-a] [name ...]"), context);
+                    return 2;
+                }
+            }
+        }
+        if (i == args.length) {
+            for (CommandRegistry.Entry entry : commands.entries()) {
+                if (entry.isEnabled() ? (all || turnOn) : (all || !turnOn)) {
+                    writestdoutFile((entry.isEnabled() ? "enable " : "enable -n ") + entry.name, context);
+                }
+            }
+            return 0;
+        }
+        int status = 0;
+        for (; i < args.length; i++) {
+            if (!commands.setEnabled(args[i], turnOn)) {
+                writestderrFile(commandName + ": " + args[i] + ": not a shell builtin", context);
+                status = 1;
+            }
+        }
+        return status;
+    }
+}
+
+class CommandHandler {
+    private final PathSearcher pathSearcher = new PathSearcher();
+    private final ExternalCommandExecutor externalCommandExecutor = new ExternalCommandExecutor();
+    private final ShellState shellState = new ShellState(new File(System.getProperty("user.dir")));
+    private final CommandRegistry commands = new CommandRegistry(shellState);
+    private final PipelineExecutor pipelineExecutor = new PipelineExecutor(commands, pathSearcher, shellState);
+    // parsing scratch space, reused for every line
+    private final Lexer lexer = new Lexer();
+    private final List<String> words = new ArrayList<>();
+    // the stage being parsed had `2>&1` and then `>file` with stdout still the
+    // console or a pipe, so its stderr must stay there
+    private boolean stderrToOriginalStdout;
+    private final PlanCache planCache;
+    private final Glob glob;
+
+    public CommandHandler() {
+        this(PlanCache.CAPACITY);
+    }
+
+    CommandHandler(int planCacheSize) {
+        planCache = new PlanCache(planCacheSize, shellState.getMetrics());
+        glob = new Glob(new DirectoryCache(DirectoryCache.CAPACITY, shellState.getMetrics()));
+        commands.register("echo", EchoCommand::new);
+        commands.register("exit", () -> new ExitCommand(shellState));
+        commands.register("type", () -> new TypeCommand(commands, pathSearcher));
+        commands.register("pwd", () -> new PwdCommand(shellState));
+        commands.register("cd", () -> new CdCommand(shellState));
+        commands.register("hash", () -> new HashCommand(pathSearcher));
+        commands.register("jobs", () -> new JobsCommand(shellState));
+        commands.register("wait", () -> new WaitCommand(shellState));
+        commands.register("fg", () -> new FgCommand(shellState));
+        commands.register("history", () -> new HistoryCommand(shellState));
+        commands.register("shellstats", () -> new ShellStatsCommand(shellState));
+        commands.register("parallel", () -> new ParallelCommand(pathSearcher, shellState));
+        commands.register("export", () -> new ExportCommand(shellState));
+        commands.register("unset", () -> new UnsetCommand(shellState));
+        commands.register("pushd", () -> new PushdCommand(shellState));
+        commands.register("popd", () -> new PopdCommand(shellState));
+        commands.register("dirs", () -> new DirsCommand(shellState));
+        commands.register("enable", () -> new EnableCommand(commands, true));
+        commands.register("disable", () -> new EnableCommand(commands, false));
+        CoreUtilities.registerAll(commands, shellState);
+    }
+
+    public CommandRegistry getCommands() {
+        return commands;
+    }
+
+    public PathSearcher getPathSearcher() {
+        return pathSearcher;
+    }
+
+    public ShellState getShellState() {
+        return shellState;
+    }
+
+    public void handleCommand(String input) {
+        handleCommand(input, LineSource.NONE);
+    }
+
+    // Runs one line; here-document bodies are read from `continuation`
+    public void handleCommand(String input, LineSource continuation) {
+        // parse(input);
+        // String[] parts = input.split(" ", 2);
+        if (input.length() == 0) {
+            return;
+        }
+        CommandExecutionEvent event = new CommandExecutionEvent();
+        event.begin();
+        long parseStart = System.nanoTime();
+        pathSearcher.setPath(shellState.getVariable("PATH"));
+        File directory = shellState.getCurrentDirectory();
+        long generation = resolutionGeneration();
+        ExecutionPlan plan = planCache.get(input, directory, generation, shellState.getEnvironment());
+        if (plan == null) {
+            plan = plan(input);
+            if (plan == null) {
+                shellState.setLastStatus(2);
+                return;
+            }
+            planCache.put(input, plan);
+        }
+        shellState.getMetrics().parse.record(System.nanoTime() - parseStart);
+
+        // a && b runs b only if a succeeded, a || b only if it failed; a skipped
+        // pipeline leaves the status for the next connector to test
+        int status = shellState.getLastStatus();
+        for (ExecutionPlan.Pipeline pipeline : plan.pipelines) {
+            if ((pipeline.connector == Lexer.AND_IF && status != 0)
+                    || (pipeline.connector == Lexer.OR_IF && status == 0)) {
+                // the bodies of its here-documents still have to be read past
+                skipHereDocuments(pipeline, continuation);
+                continue;
+            }
+            // commands were resolved when the line was planned; if an earlier pipeline
+            // changed the directory, PATH or the builtins since, resolve them again
+            pathSearcher.setPath(shellState.getVariable("PATH"));
+            boolean planCurrent = directory.equals(shellState.getCurrentDirectory())
+                    && generation == resolutionGeneration();
+            List<PipelineStage> stages = expand(pipeline.instantiate(planCurrent));
+            openInputs(stages, continuation, pipeline.background);
+            if (pipeline.background) {
+                status = startJob(stages, pipeline.text);
+            } else if (pipeline.timed) {
+                status = runTimed(stages);
+            } else {
+                status = runPipeline(stages);
+            }
+            drainHereDocuments(stages);
+            shellState.setLastStatus(status);
+        }
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.line = input;
+            event.commit();
+        }
+    }
+
+    // Changes whenever a command name may resolve differently: a PATH directory
+    // changed or a builtin was enabled, disabled or loaded. Both counters only
+    // grow, so their sum moves exactly when one of them does.
+    private long resolutionGeneration() {
+        return pathSearcher.generation() + commands.generation();
+    }
+
+    // Lexes and parses a whole line into a plan, resolving its commands. Returns
+    // null (after reporting) on a syntax error. The whole line is parsed before
+    // any of it runs, so a syntax error late in the line does not leave earlier
+    // background jobs running.
+    ExecutionPlan plan(String input) {
+        lexer.lex(input);
+        List<ExecutionPlan.Pipeline> pipelines = new ArrayList<>(1);
+        List<PlannedStage> stages = new ArrayList<>(1);
+        int position = 0;
+        int connector = Lexer.SEPARATOR;
+        while (position < lexer.size()) {
+            boolean timed = false;
+            if (lexer.kind(position) == Lexer.WORD && lexer.quoting(position) == 0
+                    && lexer.word(position).equals("time")) {
+                // `time` is a keyword timing the whole pipeline after it
+                timed = true;
+                position++;
+            }
+            stages.clear();
+            int end = parsePipeline(position, stages);
+            if (end < 0) {
+                return null;
+            }
+            boolean background = false;
+            String text = null;
+            int next = Lexer.SEPARATOR;
+            if (end < lexer.size()) {
+                int kind = lexer.kind(end);
+                if (kind == Lexer.BACKGROUND) {
+                    background = true;
+                    text = input.substring(lexer.sourceStart(position), lexer.sourceEnd(end - 1));
+                } else if (kind != Lexer.SEPARATOR) {
+                    if (end + 1 == lexer.size()) {
+                        // `a &&` with nothing after it
+                        writeParseError("syntax error: unexpected end of file");
+                        return null;
+                    }
+                    next = kind;
+                }
+            }
+            if (!stages.isEmpty()) {
+                pipelines.add(new ExecutionPlan.Pipeline(List.copyOf(stages), connector, background, timed, text));
+            }
+            connector = next;
+            position = end + 1;
+        }
+        return new ExecutionPlan(List.copyOf(pipelines));
+    }
+
+    // Prints a Done/Exit line for every background job that finished since the
+    // last call; the prompt loop calls this before each prompt
+    public void reportFinishedJobs() {
+        JobTable jobs = shellState.getJobs();
+        for (Job job : jobs.reapFinished()) {
+            ShellOutput.println(jobs.format(job));
+            jobs.remove(job);
+        }
+    }
+
+    // Replaces each pattern among the fields with its matches
+    private List<String> glob(List<String> fields) {
+        List<String> words = null;
+        for (int i = 0; i < fields.size(); i++) {
+            String field = fields.get(i);
+            if (field.charAt(0) == Lexer.GLOB) {
+                if (words == null) {
+                    words = new ArrayList<>(fields.subList(0, i));
+                }
+                words.addAll(glob.expand(field, shellState.getCurrentDirectory()));
+            } else if (words != null) {
+                words.add(field);
+            }
+        }
+        return words != null ? words : fields;
+    }
+
+    private File resolveFile(File file) {
+        return file == null || file.isAbsolute() ? file : new File(shellState.getCurrentDirectory(), file.getPath());
+    }
+
+    // Expands the parameters and patterns in the words, and the parameters in
+    // the redirection targets, of each stage. Stages without any are passed
+    // through as they are.
+    private List<PipelineStage> expand(List<PipelineStage> stages) {
+        List<PipelineStage> expanded = null;
+        for (int i = 0; i < stages.size(); i++) {
+            PipelineStage stage = stages.get(i);
+            RedirectionContext context = stage.context;
+            if (context.stdoutFile != null && Expansion.hasExpansions(context.stdoutFile.getPath())) {
+                context.stdoutFile = new File(Expansion.value(context.stdoutFile.getPath(), shellState));
+            }
+            if (context.stderrFile != null && Expansion.hasExpansions(context.stderrFile.getPath())) {
+                context.stderrFile = new File(Expansion.value(context.stderrFile.getPath(), shellState));
+            }
+            if (context.stdinFile != null && Expansion.hasExpansions(context.stdinFile.getPath())) {
+                context.stdinFile = new File(Expansion.value(context.stdinFile.getPath(), shellState));
+            }
+            // relative targets are relative to the shell's directory, not the JVM's
+            context.stdoutFile = resolveFile(context.stdoutFile);
+            context.stderrFile = resolveFile(context.stderrFile);
+            if (context.stdinFile != null) {
+                context.stdinName = context.stdinFile.getPath();
+            }
+            context.stdinFile = resolveFile(context.stdinFile);
+            // assignments expand their own values, without splitting
+            boolean changed = !(stage.command instanceof AssignmentCommand)
+                    && Expansion.hasExpansions(stage.commandName);
+            for (String arg : stage.args) {
+                changed |= !(stage.command instanceof AssignmentCommand) && Expansion.hasExpansions(arg);
+            }
+            if (!changed) {
+                continue;
+            }
+            if (expanded == null) {
+                expanded = new ArrayList<>(stages);
+            }
+            List<String> fields = new ArrayList<>(stage.args.length + 1);
+            Expansion.fields(stage.commandName, shellState, fields);
+            for (String arg : stage.args) {
+                Expansion.fields(arg, shellState, fields);
+            }
+            fields = glob(fields);
+            String commandName = fields.isEmpty() ? "" : fields.get(0);
+            String[] args = fields.isEmpty() ? new String[0]
+                    : fields.subList(1, fields.size()).toArray(new String[0]);
+            // a resolution made before expansion only holds if it did not depend
+            // on the expanded words (newStage leaves such stages unresolved)
+            boolean keep = stage.resolved && commandName.equals(stage.commandName);
+            expanded.set(i, new PipelineStage(commandName, args, context, keep, stage.command, stage.executable));
+        }
+        return expanded != null ? expanded : stages;
+    }
+
+    // Gives each stage with a here-string or here-document its stdin. A single
+    // here-document is streamed from the input as the command reads it; several
+    // in one pipeline, or one in a background job, are read ahead in line order,
+    // since their stages read concurrently with each other or with the shell.
+    private void openInputs(List<PipelineStage> stages, LineSource continuation, boolean background) {
+        int heredocs = 0;
+        for (PipelineStage stage : stages) {
+            HereDocument document = stage.context.hereDocument;
+            if (document != null && document.heredoc) {
+                heredocs++;
+            }
+        }
+        for (PipelineStage stage : stages) {
+            HereDocument document = stage.context.hereDocument;
+            if (document == null) {
+                continue;
+            }
+            InputStream in = document.open(continuation, shellState);
+            if (in instanceof HereDocumentInput && (background || heredocs > 1)) {
+                try {
+                    in = ((HereDocumentInput) in).preload();
+                } catch (IOException e) {
+                    in = InputStream.nullInputStream();
+                }
+            }
+            stage.context.stdin = in;
+        }
+    }
+
+    // Reads past whatever the commands left unread of their here-documents
+    private static void drainHereDocuments(List<PipelineStage> stages) {
+        for (PipelineStage stage : stages) {
+            if (stage.context.stdin instanceof HereDocumentInput) {
+                try {
+                    ((HereDocumentInput) stage.context.stdin).drain();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void skipHereDocuments(ExecutionPlan.Pipeline pipeline, LineSource continuation) {
+        for (PlannedStage stage : pipeline.stages) {
+            HereDocument document = stage.hereDocument;
+            if (document != null && document.heredoc) {
+                try {
+                    new HereDocumentInput(new HereDocument(document.word, true, document.stripTabs, false),
+                            continuation, shellState).drain();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private int runPipeline(List<PipelineStage> stages) {
+        ShellMetrics metrics = shellState.getMetrics();
+        if (stages.size() > 1) {
+            for (PipelineStage stage : stages) {
+                metrics.countCommand(stage.commandName);
+            }
+            return pipelineExecutor.execute(stages);
+        }
+
+        PipelineStage stage = stages.get(0);
+        String commandName = stage.commandName;
+        String[] parsedArgList = stage.args;
+        RedirectionContext context = stage.context;
+
+        // System.out.println("DEBUG: parsed input = |" + input + "|");
+        // System.out.println("DEBUG: parsed command = |" + commandName + "|");
+
+        Command command = stage.resolved ? stage.command
+                : CoreUtilities.dispatch(commands, commandName, parsedArgList, context.stdoutFile == null);
+        metrics.countCommand(commandName);
+        try {
+            if (command != null) {
+                if (!context.open()) {
+                    return 1;
+                }
+                long start = System.nanoTime();
+                int status = command.execute(parsedArgList, context);
+                metrics.builtin.record(System.nanoTime() - start);
+                return status;
+            } else if (stage.executable != null) {
+                return externalCommandExecutor.run(commandName, stage.executable, parsedArgList, shellState, context);
+            } else if (!commandName.isEmpty()) {
+                // externalCommandExecutor.execute(commandName, parsedArgList, pathSearcher,
+                // shellState);
+                return externalCommandExecutor.execute(commandName, parsedArgList, pathSearcher, shellState, context);
+            } else {
+                // the words expanded to nothing: there is no command to run
+                return 0;
+            }
+        } finally {
+            context.close();
+        }
+    }
+
+    // Runs a pipeline under `time`, reporting wall-clock time and the user/sys
+    // CPU of the shell thread plus its children on stderr, in bash's format. Child CPU
+    // is read from /proc (or ProcessHandle.Info) while the children run, since
+    // it can no longer be read once they have been reaped, so very short-lived
+    // children may be under-reported.
+    private int runTimed(List<PipelineStage> stages) {
+        for (PipelineStage stage : stages) {
+            shellState.getMetrics().countCommand(stage.commandName);
+        }
+        long start = System.nanoTime();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long shellUserBefore = threads.getCurrentThreadUserTime();
+        long shellCpuBefore = threads.getCurrentThreadCpuTime();
+        long[] children = new long[2];
+
+        RunningPipeline running = pipelineExecutor.start(stages);
+        if (running != null) {
+            long[][] last = new long[running.processes.size()][];
+            while (!running.done.isDone()) {
+                for (int i = 0; i < last.length; i++) {
+                    long[] sample = ProcessCpu.sample(running.processes.get(i).toHandle());
+                    if (sample != null) {
+                        last[i] = sample;
+                    }
+                }
+                try {
+                    running.done.get(10, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    // keep sampling
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    break;
+                }
+            }
+            for (long[] sample : last) {
+                if (sample != null) {
+                    children[0] += sample[0];
+                    children[1] += sample[1];
+                }
+            }
+        }
+
+        long real = System.nanoTime() - start;
+        long shellUser = threads.getCurrentThreadUserTime() - shellUserBefore;
+        long shellCpu = threads.getCurrentThreadCpuTime() - shellCpuBefore;
+        long user = children[0] + Math.max(0, shellUser);
+        long sys = children[1] + Math.max(0, shellCpu - shellUser);
+        System.err.println();
+        System.err.println("real\t" + formatTime(real));
+        System.err.println("user\t" + formatTime(user));
+        System.err.println("sys\t" + formatTime(sys));
+        return running == null ? 1 : running.exitValue();
+    }
+
+    // 0m0.004s
+    private static String formatTime(long nanos) {
+        long millis = nanos / 1_000_000;
+        return String.format("%dm%d.%03ds", millis / 60_000, (millis / 1000) % 60, millis % 1000);
+    }
+
+    // Starting a job succeeds (status 0) unless the pipeline could not be started
+    private int startJob(List<PipelineStage> stages, String text) {
+        RunningPipeline running = pipelineExecutor.start(stages);
+        if (running == null) {
+            return 1;
+        }
+        Job job = shellState.getJobs().add(text, running);
+        // an all-builtin job has no process to report
+        ShellOutput.println(running.pid() < 0 ? "[" + job.id + "]" : "[" + job.id + "] " + running.pid());
+        return 0;
+    }
+
+    // Parses one pipeline starting at token `from` into `stages`, pulling
+    // redirections out of the argument list. Returns the index of the token that
+    // ended it (&, ;, &&, || or the end of the line), or -1 (after reporting) on
+    // a syntax error.
+    private int parsePipeline(int from, List<PlannedStage> stages) {
+        RedirectionContext context = new RedirectionContext();
+        words.clear();
+        stderrToOriginalStdout = false;
+
+        int i = from;
+        for (; i < lexer.size() && !Lexer.isTerminator(lexer.kind(i)); i++) {
+            switch (lexer.kind(i)) {
+                case Lexer.WORD:
+                    words.add(lexer.word(i));
+                    break;
+                case Lexer.REDIRECT_OUT:
+                case Lexer.REDIRECT_APPEND:
+                case Lexer.REDIRECT_IN:
+                case Lexer.HEREDOC:
+                case Lexer.HERE_STRING:
+                    if (i + 1 == lexer.size() || lexer.kind(i + 1) != Lexer.WORD) {
+                        writeSyntaxError(i + 1 == lexer.size() ? "newline" : lexer.text(i + 1));
+                        return -1;
+                    }
+                    if (!addRedirection(i, context)) {
+                        return -1;
+                    }
+                    i++;
+                    break;
+                case Lexer.DUPLICATE:
+                    if (lexer.fd(i) > 2 || lexer.operand(i) > 2) {
+                        writeUnsupportedFd(Math.max(lexer.fd(i), lexer.operand(i)));
+                        return -1;
+                    }
+                    if (lexer.fd(i) == 2 && lexer.operand(i) == 1) {
+                        context.stderrToStdout = true;
+                        stderrToOriginalStdout = false;
+                    } else if (lexer.fd(i) == 1 && lexer.operand(i) == 2) {
+                        context.stdoutToStderr = true;
+                        context.stdoutToOriginalStderr = false;
+                    }
+                    break;
+                case Lexer.PIPE:
+                    if (words.isEmpty() || i + 1 == lexer.size() || Lexer.isTerminator(lexer.kind(i + 1))) {
+                        writeSyntaxError("|");
+                        return -1;
+                    }
+                    if (stderrToOriginalStdout) {
+                        // startPipeline can only pipe stdout
+                        writeRedirectionError("2>&1 before a stdout redirect is not supported in a pipeline");
+                        return -1;
+                    }
+                    stages.add(newStage(context, false));
+                    context = new RedirectionContext();
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (i == from && i < lexer.size()) {
+            // `&`, `;`, `&&` or `||` with nothing before it
+            writeSyntaxError(lexer.text(i));
+            return -1;
+        }
+        if (!words.isEmpty()) {
+            stages.add(newStage(context, true));
+        }
+        // else only redirections: nothing to run
+        return i;
+    }
+
+    // Records the redirection at token i, whose word is token i + 1. Only fds 0,
+    // 1 and 2 are supported; others are reported. A duplication keeps pointing
+    // where the fd went when it was made (`2>&1 >f` leaves stderr on the old
+    // stdout); returns false, after reporting, for an order that cannot be
+    // represented.
+    private boolean addRedirection(int i, RedirectionContext context) {
+        String word = lexer.word(i + 1);
+        int fd = lexer.fd(i);
+        if (fd > 2) {
+            writeUnsupportedFd(fd);
+            return false;
+        }
+        switch (lexer.kind(i)) {
+            case Lexer.REDIRECT_IN:
+                if (fd == 0) {
+                    context.stdinFile = new File(word);
+                    context.hereDocument = null;
+                }
+                break;
+            case Lexer.HEREDOC:
+            case Lexer.HERE_STRING:
+                if (fd == 0) {
+                    boolean heredoc = lexer.kind(i) == Lexer.HEREDOC;
+                    String delimiter = heredoc ? Expansion.literal(word) : word;
+                    context.hereDocument = new HereDocument(delimiter, heredoc, heredoc && lexer.operand(i) == 1,
+                            lexer.quoting(i + 1) == 0);
+                    context.stdinFile = null;
+                }
+                break;
+            default:
+                File target = new File(word);
+                boolean append = lexer.kind(i) == Lexer.REDIRECT_APPEND;
+                if (fd == 1 && context.stderrToStdout) {
+                    if (context.stdoutToOriginalStderr) {
+                        // stderr stays on the shell's stderr, where stdout was
+                        context.stderrFile = null;
+                        context.appendStderr = false;
+                    } else if (context.stdoutFile != null) {
+                        context.stderrFile = context.stdoutFile;
+                        context.appendStderr = context.appendStdout;
+                    } else {
+                        stderrToOriginalStdout = true;
+                    }
+                } else if (fd == 2 && context.stdoutToStderr) {
+                    if (context.stderrFile != null) {
+                        context.stdoutFile = context.stderrFile;
+                        context.appendStdout = context.appendStderr;
+                    } else {
+                        context.stdoutToOriginalStderr = true;
+                    }
+                    context.stdoutToStderr = false;
+                }
+                if (fd == 1 || fd == Lexer.ALL_OUTPUT) {
+                    context.stdoutFile = target;
+                    context.appendStdout = append;
+                    context.stdoutToStderr = false;
+                    context.stdoutToOriginalStderr = false;
+                    context.stderrToStdout = fd == Lexer.ALL_OUTPUT;
+                } else if (fd == 2) {
+                    context.stderrFile = target;
+                    context.appendStderr = append;
+                    context.stderrToStdout = false;
+                    stderrToOriginalStdout = false;
+                }
+                break;
+        }
+        return true;
+    }
+
+    // Builds a stage from the collected words and resolves its command: the
+    // builtin to run or the executable to start. A command name holding a
+    // parameter is resolved when it runs, after expansion. A command made up only
+    // of NAME=value words sets shell variables.
+    private PlannedStage newStage(RedirectionContext redirections, boolean last) {
+        String commandName = words.get(0);
+        String[] parsedArgList = words.subList(1, words.size()).toArray(new String[0]);
+        boolean assignments = true;
+        for (String word : words) {
+            assignments &= Expansion.isAssignment(word);
+        }
+        if (assignments) {
+            String[] literals = new String[words.size()];
+            for (int i = 0; i < literals.length; i++) {
+                // no pathname expansion in assignments
+                literals[i] = Expansion.literal(words.get(i));
+            }
+            AssignmentCommand command = new AssignmentCommand(literals, shellState);
+            words.clear();
+            return new PlannedStage(literals[0], parsedArgList, redirections, true, command, null);
+        }
+        words.clear();
+        if (Expansion.hasExpansions(commandName) || commandName.contains(File.separator)) {
+            // a path is not covered by the PATH generation (the file may be created,
+            // made executable or deleted at any time), so it is resolved on each run
+            return new PlannedStage(commandName, parsedArgList, redirections, false, null, null);
+        }
+        if (commands.get(commandName) instanceof CoreUtility) {
+            // whether a utility runs in-process depends on its arguments
+            for (String word : parsedArgList) {
+                if (Expansion.hasExpansions(word)) {
+                    return new PlannedStage(commandName, parsedArgList, redirections, false, null, null);
+                }
+            }
+        }
+        boolean toConsole = last && redirections.stdoutFile == null;
+        Command command = CoreUtilities.dispatch(commands, commandName, parsedArgList, toConsole);
+        File executable = command == null ? pipelineExecutor.resolve(commandName) : null;
+        return new PlannedStage(commandName, parsedArgList, redirections, true, command, executable);
+    }
+
+    private void writeSyntaxError(String token) {
+        writeParseError("syntax error near unexpected token `" + token + "'");
+    }
+
+    private void writeRedirectionError(String message) {
+        writeParseError("redirection error: " + message);
+    }
+
+    // Parse errors go to stderr, so they never end up in a redirected or piped
+    // data stream; stdout is flushed first to keep the two in order
+    private static void writeParseError(String message) {
+        ShellOutput.flush();
+        System.err.println(message);
+    }
+
+    private void writeUnsupportedFd(int fd) {
+        writeRedirectionError(fd + ": only file descriptors 0, 1 and 2 can be redirected");
+    }
+}
+
+// Single-pass tokenizer for a command line: handles quoting and escapes and
+// splits out operators (|, &, ;, &&, ||, [n]>, [n]>>, [n]>&m, &>, <, <<, <<<)
+// in the same scan. Tokens live in
+// parallel arrays that are reused across calls, so lexing only allocates when
+// a buffer has to grow; word text is materialised on demand by word(i).
+class Lexer {
+    static final int WORD = 0;
+    static final int PIPE = 1;
+    static final int REDIRECT_OUT = 2; // [n]>
+    static final int REDIRECT_APPEND = 3; // [n]>>
+    static final int BACKGROUND = 4; // &
+    static final int SEPARATOR = 5; // ;
+    static final int AND_IF = 6; // &&
+    static final int OR_IF = 7; // ||
+    static final int REDIRECT_IN = 8; // [n]<
+    static final int HEREDOC = 9; // << and <<-
+    static final int HERE_STRING = 10; // <<<
+    static final int DUPLICATE = 11; // [n]>&m
+
+    // fd of &> and >&file, which redirect stdout and stderr together
+    static final int ALL_OUTPUT = -1;
+
+    // A parameter reference ($NAME, ${NAME}, $?, $$) is kept in the word text as
+    // PARAMETER (or QUOTED_PARAMETER inside double quotes), the name, and
+    // PARAMETER_END, so it can be expanded when the command runs and told apart
+    // from a literal (single-quoted or escaped) '$'. See Expansion.
+    static final char PARAMETER = '\uE000';
+    static final char QUOTED_PARAMETER = '\uE001';
+    static final char PARAMETER_END = '\uE002';
+    // Leads a word holding an unquoted *, ? or [: the rest of the word is then a
+    // pattern, in which quoted or escaped *?[]\ are escaped with a backslash.
+    // See Glob.
+    static final char GLOB = '\uE003';
+
+    // quote provenance of a WORD: a quoted or escaped word is never an operator
+    static final int SINGLE_QUOTED = 1;
+    static final int DOUBLE_QUOTED = 2;
+    static final int ESCAPED = 4;
+
+    private char[] chars = new char[256];
+    private int length;
+
+    private int[] kinds = new int[16];
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    // quote bits for words, file descriptor for redirections
+    private int[] flags = new int[16];
+    // [start, end) of each token in the source line
+    private int[] sourceStarts = new int[16];
+    private int[] sourceEnds = new int[16];
+    private int count;
+
+    // state of the word being scanned; wordStart is -1 between words
+    private int wordStart;
+    private int wordFlags;
+    private int wordSourceStart;
+    // whether the word has an unquoted glob character, and whether literal ones
+    // were escaped (undone in endWord if it turns out not to be a pattern)
+    private boolean wordGlob;
+    private boolean wordEscapes;
+    // index of the source character being scanned
+    private int sourceIndex;
+
+    public void lex(CharSequence line) {
+        count = 0;
+        length = 0;
+        wordStart = -1;
+        wordFlags = 0;
+        boolean inSingleQuote = false;
+        boolean inDoubleQuote = false;
+        int n = line.length();
+
+        for (int i = 0; i < n; i++) {
+            char c = line.charAt(i);
+            sourceIndex = i;
+
+            if (inSingleQuote) {
+                if (c == '\'') {
+                    inSingleQuote = false;
+                } else {
+                    appendLiteral(c);
+                }
+            } else if (inDoubleQuote) {
+                if (c == '"') {
+                    inDoubleQuote = false;
+                } else if (c == '\\' && i + 1 < n && (line.charAt(i + 1) == '"' || line.charAt(i + 1) == '\\')) {
+                    appendLiteral(line.charAt(++i));
+                } else if (c == '$' && parameterEnd(line, i) > 0) {
+                    i = appendParameter(line, i, QUOTED_PARAMETER);
+                } else {
+                    appendLiteral(c);
+                }
+            } else if (c == '\\') {
+                // a trailing backslash is dropped
+                if (i + 1 < n) {
+                    startWord(ESCAPED);
+                    appendLiteral(line.charAt(++i));
+                }
+            } else if (c == '\'') {
+                startWord(SINGLE_QUOTED);
+                inSingleQuote = true;
+            } else if (c == '"') {
+                startWord(DOUBLE_QUOTED);
+                inDoubleQuote = true;
+            } else if (c == '#' && wordStart == -1) {
+                // comment (also covers a script's #! line)
+                break;
+            } else if (c == '|') {
+                endWord();
+                if (i + 1 < n && line.charAt(i + 1) == '|') {
+                    addToken(OR_IF, 0, 0, 0, i, i + 2);
+                    i++;
+                } else {
+                    addToken(PIPE, 0, 0, 0, i, i + 1);
+                }
+            } else if (c == '&') {
+                endWord();
+                if (i + 1 < n && line.charAt(i + 1) == '&') {
+                    addToken(AND_IF, 0, 0, 0, i, i + 2);
+                    i++;
+                } else if (i + 1 < n && line.charAt(i + 1) == '>') {
+                    // &> and &>>
+                    int operatorStart = i++;
+                    if (i + 1 < n && line.charAt(i + 1) == '>') {
+                        i++;
+                        addToken(REDIRECT_APPEND, 0, 0, ALL_OUTPUT, operatorStart, i + 1);
+                    } else {
+                        addToken(REDIRECT_OUT, 0, 0, ALL_OUTPUT, operatorStart, i + 1);
+                    }
+                } else {
+                    addToken(BACKGROUND, 0, 0, 0, i, i + 1);
+                }
+            } else if (c == ';') {
+                endWord();
+                addToken(SEPARATOR, 0, 0, 0, i, i + 1);
+            } else if (c == '$' && parameterEnd(line, i) > 0) {
+                startWord(0);
+                i = appendParameter(line, i, PARAMETER);
+            } else if (c == '>') {
+                int operatorStart = wordStart == -1 ? i : wordSourceStart;
+                int fd = takeIoNumber(1);
+                if (i + 1 < n && line.charAt(i + 1) == '>') {
+                    i++;
+                    addToken(REDIRECT_APPEND, 0, 0, fd, operatorStart, i + 1);
+                } else if (i + 2 < n && line.charAt(i + 1) == '&' && Character.isDigit(line.charAt(i + 2))) {
+                    // [n]>&m; the target fd is kept in the (otherwise unused) start slot
+                    i++;
+                    int target = 0;
+                    while (i + 1 < n && Character.isDigit(line.charAt(i + 1))) {
+                        target = target * 10 + (line.charAt(++i) - '0');
+                    }
+                    addToken(DUPLICATE, target, 0, fd, operatorStart, i + 1);
+                } else if (i + 1 < n && line.charAt(i + 1) == '&') {
+                    // >&file is &>file
+                    i++;
+                    addToken(REDIRECT_OUT, 0, 0, ALL_OUTPUT, operatorStart, i + 1);
+                } else {
+                    addToken(REDIRECT_OUT, 0, 0, fd, operatorStart, i + 1);
+                }
+            } else if (c == '<') {
+                int operatorStart = wordStart == -1 ? i : wordSourceStart;
+                int fd = takeIoNumber(0);
+                if (i + 2 < n && line.charAt(i + 1) == '<' && line.charAt(i + 2) == '<') {
+                    i += 2;
+                    addToken(HERE_STRING, 0, 0, fd, operatorStart, i + 1);
+                } else if (i + 1 < n && line.charAt(i + 1) == '<') {
+                    i++;
+                    // <<- strips leading tabs; kept in the start slot
+                    boolean stripTabs = i + 1 < n && line.charAt(i + 1) == '-';
+                    if (stripTabs) {
+                        i++;
+                    }
+                    addToken(HEREDOC, stripTabs ? 1 : 0, 0, fd, operatorStart, i + 1);
+                } else {
+                    addToken(REDIRECT_IN, 0, 0, fd, operatorStart, i + 1);
+                }
+            } else if (Character.isWhitespace(c)) {
+                endWord();
+            } else {
+                startWord(0);
+                wordGlob |= c == '*' || c == '?' || c == '[';
+                append(c);
+            }
+        }
+        sourceIndex = n;
+        endWord();
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int kind(int token) {
+        return kinds[token];
+    }
+
+    public String word(int token) {
+        return new String(chars, starts[token], ends[token] - starts[token]);
+    }
+
+    public int quoting(int token) {
+        return kinds[token] == WORD ? flags[token] : 0;
+    }
+
+    public int fd(int token) {
+        return flags[token];
+    }
+
+    // the target fd of >&, or 1 for a tab-stripping <<-
+    public int operand(int token) {
+        return starts[token];
+    }
+
+    public int sourceStart(int token) {
+        return sourceStarts[token];
+    }
+
+    public int sourceEnd(int token) {
+        return sourceEnds[token];
+    }
+
+    // source-like rendering of a token, for error messages
+    public String text(int token) {
+        switch (kinds[token]) {
+            case PIPE:
+                return "|";
+            case BACKGROUND:
+                return "&";
+            case SEPARATOR:
+                return ";";
+            case AND_IF:
+                return "&&";
+            case OR_IF:
+                return "||";
+            case REDIRECT_OUT:
+                return ">";
+            case REDIRECT_APPEND:
+                return ">>";
+            case REDIRECT_IN:
+                return "<";
+            case HEREDOC:
+                return "<<";
+            case HERE_STRING:
+                return "<<<";
+            case DUPLICATE:
+                return ">&";
+            default:
+                return word(token);
+        }
+    }
+
+    // For a `$` at index i: the index just past the parameter reference that
+    // follows, or -1 if it is a literal '$'
+    static int parameterEnd(CharSequence line, int i) {
+        int n = line.length();
+        if (i + 1 >= n) {
+            return -1;
+        }
+        char c = line.charAt(i + 1);
+        if (c == '?' || c == '$' || (c >= '0' && c <= '9')) {
+            return i + 2;
+        }
+        if (c == '{') {
+            int close = i + 2;
+            while (close < n && line.charAt(close) != '}') {
+                close++;
+            }
+            if (close == n || !isNameOrSpecial(line, i + 2, close)) {
+                return -1;
+            }
+            return close + 1;
+        }
+        int end = i + 1;
+        while (end < n && isNameChar(line.charAt(end), end == i + 1)) {
+            end++;
+        }
+        return end > i + 1 ? end : -1;
+    }
+
+    private int appendParameter(CharSequence line, int i, char marker) {
+        int end = parameterEnd(line, i);
+        boolean braced = line.charAt(i + 1) == '{';
+        append(marker);
+        for (int k = braced ? i + 2 : i + 1; k < (braced ? end - 1 : end); k++) {
+            append(line.charAt(k));
+        }
+        append(PARAMETER_END);
+        return end - 1;
+    }
+
+    private static boolean isNameOrSpecial(CharSequence line, int start, int end) {
+        if (end - start == 1 && (line.charAt(start) == '?' || line.charAt(start) == '$')) {
+            return true;
+        }
+        if (start == end) {
+            return false;
+        }
+        for (int k = start; k < end; k++) {
+            if (!isNameChar(line.charAt(k), k == start)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isNameChar(char c, boolean first) {
+        return c == '_' || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (!first && c >= '0' && c <= '9');
+    }
+
+    // whether a token of this kind ends a pipeline
+    static boolean isTerminator(int kind) {
+        return kind == BACKGROUND || kind == SEPARATOR || kind == AND_IF || kind == OR_IF;
+    }
+
+    // An unquoted all-digit word directly before > or < is the fd being
+    // redirected (2>file); anything else ends the word and the redirection is for
+    // the default fd.
+    private int takeIoNumber(int defaultFd) {
+        int digits = wordStart == -1 ? 0 : length - wordStart;
+        if (digits > 0 && digits <= 3 && wordFlags == 0) {
+            int fd = 0;
+            for (int k = wordStart; k < length; k++) {
+                char d = chars[k];
+                if (d < '0' || d > '9') {
+                    endWord();
+                    return defaultFd;
+                }
+                fd = fd * 10 + (d - '0');
+            }
+            length = wordStart;
+            wordStart = -1;
+            wordFlags = 0;
+            return fd;
+        }
+        endWord();
+        return defaultFd;
+    }
+
+    private void startWord(int quoting) {
+        if (wordStart == -1) {
+            wordStart = length;
+            wordFlags = 0;
+            wordSourceStart = sourceIndex;
+            wordGlob = false;
+            wordEscapes = false;
+        }
+        wordFlags |= quoting;
+    }
+
+    private void endWord() {
+        // empty words (e.g. a bare '') are dropped, as they always have been
+        if (wordStart != -1 && length > wordStart) {
+            if (wordGlob) {
+                append(GLOB);
+                System.arraycopy(chars, wordStart, chars, wordStart + 1, length - wordStart - 1);
+                chars[wordStart] = GLOB;
+            } else if (wordEscapes) {
+                length = wordStart + Glob.unescape(chars, wordStart, length);
+            }
+            addToken(WORD, wordStart, length, wordFlags, wordSourceStart, sourceIndex);
+        }
+        wordStart = -1;
+        wordFlags = 0;
+    }
+
+    // a quoted or escaped character, which never acts as a glob character
+    private void appendLiteral(char c) {
+        if (Glob.isSpecial(c)) {
+            append('\\');
+            wordEscapes = true;
+        }
+        append(c);
+    }
+
+    private void append(char c) {
+        if (length == chars.length) {
+            chars = Arrays.copyOf(chars, length * 2);
+        }
+        chars[length++] = c;
+    }
+
+    private void addToken(int kind, int start, int end, int flag, int sourceStart, int sourceEnd) {
+        if (count == kinds.length) {
+            int grown = count * 2;
+            kinds = Arrays.copyOf(kinds, grown);
+            starts = Arrays.copyOf(starts, grown);
+            ends = Arrays.copyOf(ends, grown);
+            flags = Arrays.copyOf(flags, grown);
+            sourceStarts = Arrays.copyOf(sourceStarts, grown);
+            sourceEnds = Arrays.copyOf(sourceEnds, grown);
+        }
+        kinds[count] = kind;
+        starts[count] = start;
+        ends[count] = end;
+        flags[count] = flag;
+        sourceStarts[count] = sourceStart;
+        sourceEnds[count] = sourceEnd;
+        count++;
+    }
+}
+
+// One command of a pipeline (or a plain command line): argv plus its own
+// redirections
+class PipelineStage {
+    final String commandName;
+    final String[] args;
+    final RedirectionContext context;
+    // set when the command was resolved ahead of time (see PlannedStage): the
+    // builtin to run, else the executable, else (both null) not found
+    final boolean resolved;
+    final Command command;
+    final File executable;
+
+    PipelineStage(String commandName, String[] args, RedirectionContext context) {
+        this(commandName, args, context, false, null, null);
+    }
+
+    PipelineStage(String commandName, String[] args, RedirectionContext context, boolean resolved, Command command,
+            File executable) {
+        this.commandName = commandName;
+        this.args = args;
+        this.context = context;
+        this.resolved = resolved;
+        this.command = command;
+        this.executable = executable;
+    }
+}
+
+// Immutable result of parsing one input line: its pipelines in order, each
+// with the operator joining it to the one before. Plans are cached and reused,
+// so nothing here may be changed once built.
+final class ExecutionPlan {
+    final List<Pipeline> pipelines;
+
+    ExecutionPlan(List<Pipeline> pipelines) {
+        this.pipelines = pipelines;
+    }
+
+    static final class Pipeline {
+        final List<PlannedStage> stages;
+        // the operator before it: Lexer.SEPARATOR (also ; or &), AND_IF or OR_IF
+        final int connector;
+        final boolean background;
+        final boolean timed;
+        // source text, for the job table
+        final String text;
+
+        Pipeline(List<PlannedStage> stages, int connector, boolean background, boolean timed, String text) {
+            this.stages = stages;
+            this.connector = connector;
+            this.background = background;
+            this.timed = timed;
+            this.text = text;
+        }
+
+        // Fresh stages (with their own redirection state) for one run; without
+        // the planned command resolution if it may be out of date
+        List<PipelineStage> instantiate(boolean resolved) {
+            List<PipelineStage> instances = new ArrayList<>(stages.size());
+            for (PlannedStage stage : stages) {
+                instances.add(stage.instantiate(resolved));
+            }
+            return instances;
+        }
+    }
+}
+
+// One command of an ExecutionPlan: argv, redirection targets and, when
+// resolved, the builtin or executable it runs. args is shared by every run and
+// must not be modified.
+final class PlannedStage {
+    final String commandName;
+    final String[] args;
+    final File stdoutFile;
+    final boolean appendStdout;
+    final File stderrFile;
+    final boolean appendStderr;
+    final File stdinFile;
+    final HereDocument hereDocument;
+    final boolean stderrToStdout;
+    final boolean stdoutToStderr;
+    final boolean stdoutToOriginalStderr;
+    final boolean resolved;
+    final Command command;
+    final File executable;
+
+    PlannedStage(String commandName, String[] args, RedirectionContext redirections, boolean resolved,
+            Command command, File executable) {
+        this.commandName = commandName;
+        this.args = args;
+        this.stdoutFile = redirections.stdoutFile;
+        this.appendStdout = redirections.appendStdout;
+        this.stderrFile = redirections.stderrFile;
+        this.appendStderr = redirections.appendStderr;
+        this.stdinFile = redirections.stdinFile;
+        this.hereDocument = redirections.hereDocument;
+        this.stderrToStdout = redirections.stderrToStdout;
+        this.stdoutToStderr = redirections.stdoutToStderr;
+        this.stdoutToOriginalStderr = redirections.stdoutToOriginalStderr;
+        this.resolved = resolved;
+        this.command = command;
+        this.executable = executable;
+    }
+
+    PipelineStage instantiate(boolean keepResolution) {
+        RedirectionContext context = new RedirectionContext();
+        context.stdoutFile = stdoutFile;
+        context.appendStdout = appendStdout;
+        context.stderrFile = stderrFile;
+        context.appendStderr = appendStderr;
+        context.stdinFile = stdinFile;
+        context.hereDocument = hereDocument;
+        context.stderrToStdout = stderrToStdout;
+        context.stdoutToStderr = stdoutToStderr;
+        context.stdoutToOriginalStderr = stdoutToOriginalStderr;
+        // assignments are not resolved against anything, so they always hold
+        if (keepResolution || command instanceof AssignmentCommand) {
+            return new PipelineStage(commandName, args, context, resolved, command, executable);
+        }
+        return new PipelineStage(commandName, args, context);
+    }
+}
+
+// Bounded LRU cache from a raw input line to its ExecutionPlan, so a repeated
+// line skips lexing, parsing and command resolution. Plans hold resolved
+// executables (relative ones against the working directory) and builtins, so
+// the whole cache is dropped when the working directory, a PATH directory, the
+// builtin table or the exported environment changes (the in-process ls
+// depends on the locale).
+// -Dshell.planCache.size sets the capacity (0 disables the cache); very long
+// lines are not cached.
+class PlanCache {
+    static final int CAPACITY = Integer.getInteger("shell.planCache.size", 512);
+    static final int MAX_LINE_LENGTH = 4096;
+
+    private final int capacity;
+    private final ShellMetrics metrics;
+    private final LinkedHashMap<String, ExecutionPlan> plans;
+    // what the cached plans were resolved against
+    private File directory;
+    private long pathGeneration;
+    private Environment environment;
+
+    PlanCache(int capacity, ShellMetrics metrics) {
+        this.capacity = capacity;
+        this.metrics = metrics;
+        this.plans = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ExecutionPlan> eldest) {
+                return size() > PlanCache.this.capacity;
+            }
+        };
+    }
+
+    // The cached plan for this line, or null
+    ExecutionPlan get(String line, File directory, long pathGeneration, Environment environment) {
+        if (capacity == 0 || line.length() > MAX_LINE_LENGTH) {
+            return null;
+        }
+        if (!directory.equals(this.directory) || pathGeneration != this.pathGeneration
+                || environment != this.environment) {
+            if (!plans.isEmpty()) {
+                plans.clear();
+                metrics.planInvalidations.increment();
+            }
+            this.directory = directory;
+            this.pathGeneration = pathGeneration;
+            this.environment = environment;
+        }
+        ExecutionPlan plan = plans.get(line);
+        (plan != null ? metrics.planHits : metrics.planMisses).increment();
+        return plan;
+    }
+
+    void put(String line, ExecutionPlan plan) {
+        if (capacity > 0 && line.length() <= MAX_LINE_LENGTH) {
+            plans.put(line, plan);
+        }
+    }
+
+    int size() {
+        return plans.size();
+    }
+}
+
+// Handle on a started pipeline: its external processes (in stage order) and a
+// future completing with the last stage's exit status once every stage, builtin
+// or external, has finished
+class RunningPipeline {
+    final List<Process> processes;
+    final CompletableFuture<Integer> done;
+
+    RunningPipeline(List<Process> processes, CompletableFuture<Integer> done) {
+        this.processes = processes;
+        this.done = done;
+    }
+
+    void await() {
+        ShellOutput.flush();
+        try {
+            done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.err.println("Error executing pipeline: " + e.getCause().getMessage());
+        }
+    }
+
+    // pid of the last external stage, as shells report for a job; -1 if all
+    // stages are builtins
+    long pid() {
+        return processes.isEmpty() ? -1 : processes.get(processes.size() - 1).pid();
+    }
+
+    // exit status of the pipeline (its last stage); only meaningful once done
+    int exitValue() {
+        return done.isCompletedExceptionally() ? 1 : done.getNow(1);
+    }
+}
+
+// Runs `cmd1 | cmd2 | ...` with every stage live at once. Consecutive external
+// commands are linked with ProcessBuilder.startPipeline so the kernel moves the
+// bytes between them; builtins run on their own virtual threads and talk to
+// neighbours through OS pipes (bounded, so a fast producer blocks on a slow
+// consumer instead of buffering everything).
+class PipelineExecutor {
+    private final CommandRegistry commands;
+    private final PathSearcher pathSearcher;
+    private final ShellState shellState;
+
+    PipelineExecutor(CommandRegistry commands, PathSearcher pathSearcher, ShellState shellState) {
+        this.commands = commands;
+        this.pathSearcher = pathSearcher;
+        this.shellState = shellState;
+    }
+
+    // Runs the pipeline to completion and returns the last stage's exit status
+    public int execute(List<PipelineStage> stages) {
+        RunningPipeline running = start(stages);
+        if (running == null) {
+            return 1;
+        }
+        long waitStart = System.nanoTime();
+        running.await();
+        shellState.getMetrics().wait.record(System.nanoTime() - waitStart);
+        return running.exitValue();
+    }
+
+    // Starts every stage and returns without waiting, or returns null if the
+    // pipeline could not be started
+    public RunningPipeline start(List<PipelineStage> stages) {
+        int n = stages.size();
+        Command[] builtins = new Command[n];
+        File[] executables = new File[n];
+        for (int i = 0; i < n; i++) {
+            PipelineStage stage = stages.get(i);
+            if (stage.resolved) {
+                builtins[i] = stage.command;
+                executables[i] = stage.executable;
+            } else {
+                boolean toConsole = i == n - 1 && stage.context.stdoutFile == null;
+                builtins[i] = CoreUtilities.dispatch(commands, stage.commandName, stage.args, toConsole);
+                if (builtins[i] == null) {
+                    executables[i] = resolve(stage.commandName);
+                }
+            }
+            if (builtins[i] == null && executables[i] == null) {
+                builtins[i] = new CommandNotFound(stage.commandName);
+            }
+        }
+
+        Process[] processes = new Process[n];
+        List<CompletableFuture<Integer>> completions = new ArrayList<>();
+        // here-document feeders and >&2 pumps: waited for, but not the status
+        List<CompletableFuture<?>> transfers = new ArrayList<>();
+        try {
+            startProcesses(stages, executables, processes);
+
+            // wire builtin stages to their neighbours
+            OutputStream[] outputs = new OutputStream[n];
+            InputStream[] inputs = new InputStream[n];
+            for (int i = 0; i < n; i++) {
+                RedirectionContext context = stages.get(i).context;
+                if (context.hasOwnInput()) {
+                    if (context.hereDocument != null) {
+                        if (processes[i] != null) {
+                            transfers.add(feed(context.stdin, processes[i]));
+                        } else {
+                            inputs[i] = context.stdin;
+                        }
+                    }
+                    // a `< file` is opened by the redirect or by the builtin's context;
+                    // the upstream stage's output goes nowhere
+                    if (i > 0 && builtins[i - 1] != null && !redirectsStdout(stages.get(i - 1))) {
+                        outputs[i - 1] = OutputStream.nullOutputStream();
+                    }
+                    continue;
+                }
+                if (i == 0) {
+                    continue;
+                }
+                boolean upstreamToFile = redirectsStdout(stages.get(i - 1));
+                if (processes[i - 1] != null && processes[i] != null) {
+                    if (upstreamToFile) {
+                        // upstream wrote into a file, so this stage sees an empty stdin
+                        processes[i].getOutputStream().close();
+                    }
+                    // otherwise linked by startPipeline
+                } else if (upstreamToFile) {
+                    if (processes[i] != null) {
+                        processes[i].getOutputStream().close();
+                    } else {
+                        inputs[i] = InputStream.nullInputStream();
+                    }
+                } else if (processes[i - 1] != null) {
+                    inputs[i] = processes[i - 1].getInputStream();
+                } else if (processes[i] != null) {
+                    outputs[i - 1] = processes[i].getOutputStream();
+                } else {
+                    Pipe pipe = Pipe.open();
+                    outputs[i - 1] = Channels.newOutputStream(pipe.sink());
+                    inputs[i] = Channels.newInputStream(pipe.source());
+                }
+            }
+
+            for (int i = 0; i < n; i++) {
+                if (builtins[i] != null) {
+                    completions.add(startBuiltin(stages.get(i), builtins[i], inputs[i], outputs[i]));
+                } else {
+                    completions.add(processes[i].onExit().thenApply(Process::exitValue));
+                    if (stages.get(i).context.pumpsStdoutToStderr()) {
+                        transfers.add(pump(processes[i].getInputStream(), System.err));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error executing pipeline: " + e.getMessage());
+            for (Process process : processes) {
+                if (process != null) {
+                    process.destroy();
+                }
+            }
+            return null;
+        }
+
+        List<Process> started = new ArrayList<>(n);
+        for (Process process : processes) {
+            if (process != null) {
+                started.add(process);
+            }
+        }
+        CompletableFuture<Integer> last = completions.get(n - 1);
+        transfers.addAll(completions);
+        return new RunningPipeline(started, CompletableFuture.allOf(transfers.toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> last.join()));
+    }
+
+    // whether a stage's stdout goes somewhere other than the next stage
+    private static boolean redirectsStdout(PipelineStage stage) {
+        return stage.context.stdoutFile != null || stage.context.stdoutToStderr
+                || stage.context.stdoutToOriginalStderr;
+    }
+
+    // Writes a here-document into a process's stdin, then closes it
+    static CompletableFuture<Void> feed(InputStream in, Process process) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        Thread.ofVirtual().name("heredoc-" + process.pid()).start(() -> {
+            try (OutputStream out = process.getOutputStream()) {
+                StreamTransfer.copy(in, out);
+            } catch (IOException e) {
+                // the process exited without reading it all
+            } finally {
+                done.complete(null);
+            }
+        });
+        return done;
+    }
+
+    private static CompletableFuture<Void> pump(InputStream in, OutputStream out) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        Thread.ofVirtual().name("pump").start(() -> {
+            try (in) {
+                StreamTransfer.copy(in, out);
+            } catch (IOException ignored) {
+            } finally {
+                done.complete(null);
+            }
+        });
+        return done;
+    }
+
+    // Starts every external stage, grouping runs of adjacent externals into a
+    // single startPipeline call. A stage redirecting stdout ends its group and
+    // one with its own input starts a new one, since startPipeline only accepts
+    // pipes between members.
+    private void startProcesses(List<PipelineStage> stages, File[] executables, Process[] processes)
+            throws IOException {
+        int n = stages.size();
+        int i = 0;
+        while (i < n) {
+            if (executables[i] == null) {
+                i++;
+                continue;
+            }
+            List<ProcessBuilder> builders = new ArrayList<>();
+            int first = i;
+            while (i < n && executables[i] != null && (i == first || !stages.get(i).context.hasOwnInput())) {
+                PipelineStage stage = stages.get(i);
+                ProcessBuilder pb = newProcessBuilder(stage, executables[i]);
+                builders.add(pb);
+                i++;
+                if (redirectsStdout(stage)) {
+                    break;
+                }
+            }
+            int last = i - 1;
+            if (!redirectsStdout(stages.get(last))) {
+                if (last == n - 1) {
+                    builders.get(builders.size() - 1).redirectOutput(ProcessBuilder.Redirect.INHERIT);
+                } else if (stages.get(last + 1).context.hasOwnInput()) {
+                    // nothing reads it
+                    builders.get(builders.size() - 1).redirectOutput(ProcessBuilder.Redirect.DISCARD);
+                }
+            }
+            ShellOutput.flush();
+            long spawnStart = System.nanoTime();
+            List<Process> started = ProcessBuilder.startPipeline(builders);
+            shellState.getMetrics().spawn.record(System.nanoTime() - spawnStart);
+            for (int k = 0; k < started.size(); k++) {
+                processes[first + k] = started.get(k);
+            }
+        }
+    }
+
+    private ProcessBuilder newProcessBuilder(PipelineStage stage, File executable) throws IOException {
+        List<String> commandWithArgs = new ArrayList<>(1 + stage.args.length);
+        commandWithArgs.add(ExternalCommandExecutor.programName(stage.commandName, executable));
+        for (String a : stage.args) {
+            if (!a.isEmpty())
+                commandWithArgs.add(a);
+        }
+        ProcessBuilder pb = new ProcessBuilder(commandWithArgs);
+        pb.directory(shellState.getCurrentDirectory());
+        shellState.getEnvironment().applyTo(pb);
+        stage.context.applyTo(pb);
+        return pb;
+    }
+
+    private CompletableFuture<Integer> startBuiltin(PipelineStage stage, Command command, InputStream in,
+            OutputStream out) {
+        RedirectionContext context = stage.context;
+        if (!context.hasOwnInput()) {
+            context.stdin = in;
+        }
+        if (out != null) {
+            context.pipeStdout(out);
+        }
+        CompletableFuture<Integer> done = new CompletableFuture<>();
+        Thread.ofVirtual().name("pipeline-" + stage.commandName).start(() -> {
+            int status = 1;
+            try {
+                if (context.open()) {
+                    status = command.execute(stage.args, context);
+                }
+            } finally {
+                // closing our end is what tells the neighbours we are done: EOF downstream,
+                // broken pipe upstream
+                context.close();
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+                done.complete(status);
+            }
+        });
+        return done;
+    }
+
+    // The executable a command name runs, or null if there is none
+    File resolve(String commandName) {
+        if (commandName.contains(File.separator)) {
+            File direct = new File(commandName);
+            if (!direct.isAbsolute()) {
+                direct = new File(shellState.getCurrentDirectory(), commandName);
+            }
+            return direct.isFile() && direct.canExecute() ? direct : null;
+        }
+        long lookupStart = System.nanoTime();
+        File executable = pathSearcher.lookup(commandName);
+        shellState.getMetrics().lookup.record(System.nanoTime() - lookupStart);
+        return executable;
+    }
+
+    private static class CommandNotFound implements Command {
+        private final String commandName;
+
+        CommandNotFound(String commandName) {
+            this.commandName = commandName;
+        }
+
+        @Override
+        public int execute(String arguments, RedirectionContext context) {
+            writestderrFile(commandName + ": command not found", context);
+            return 127;
+        }
+    }
+}
+
+class ExternalCommandExecutor {
+    // Runs the command and returns its exit status; 127 if it was not found
+    public int execute(String commandName, String[] argList, PathSearcher pathSearcher, ShellState shellState,
+            RedirectionContext context) {
+        // Support direct path execution if command contains a '/'
+        if (commandName.contains(File.separator)) {
+            File direct = new File(commandName);
+            if (!direct.isAbsolute()) {
+                direct = new File(shellState.getCurrentDirectory(), commandName);
+            }
+            if (direct.exists() && direct.canExecute() && direct.isFile()) {
+                return runProcess(commandName, direct.getAbsolutePath(), argList, shellState, context, 0);
+            } else {
+                ShellOutput.println(commandName + ": command not found");
+                // writestderrFile(commandName + ": command not found", stderrFile);
+                return 127;
+            }
+        }
+
+        long lookupStart = System.nanoTime();
+        File executable = pathSearcher.lookup(commandName);
+        long lookupNanos = System.nanoTime() - lookupStart;
+        shellState.getMetrics().lookup.record(lookupNanos);
+        if (executable == null) {
+            // System.out.println(commandName + ": command not found");
+            writestderrFile(commandName + ": command not found", context);
+            return 127;
+        }
+
+        return runProcess(commandName, executable.getAbsolutePath(), argList, shellState, context, lookupNanos);
+    }
+
+    // Runs an executable that has already been looked up
+    public int run(String commandName, File executable, String[] argList, ShellState shellState,
+            RedirectionContext context) {
+        return runProcess(commandName, executable.getAbsolutePath(), argList, shellState, context, 0);
+    }
+
+    // The JVM looks a bare program name up on the PATH the shell was started
+    // with, not the PATH given to the child, so after `export PATH=...` the name
+    // alone may run another file or none at all
+    private static final String[] STARTUP_PATH = System.getenv("PATH") == null ? new String[0]
+            : System.getenv("PATH").split(File.pathSeparator);
+
+    // What to start for a resolved command: the name as typed (so argv[0] is what
+    // the user wrote) when the JVM's own search finds the same file, otherwise
+    // the executable's path
+    static String programName(String commandName, File executable) {
+        if (commandName.contains(File.separator)) {
+            return commandName;
+        }
+        for (String dir : STARTUP_PATH) {
+            if (dir.isEmpty() || !new File(dir).isAbsolute()) {
+                // resolved against the child's directory: not worth predicting
+                break;
+            }
+            File candidate = new File(dir, commandName);
+            if (candidate.isFile() && candidate.canExecute()) {
+                return candidate.equals(executable) ? commandName : executable.getAbsolutePath();
+            }
+        }
+        return executable.getAbsolutePath();
+    }
+
+    private void writestderrFile(String content, RedirectionContext context) {
+        context.stderr().println(content);
+    }
+
+    private int runProcess(String commandName, String executablePath, String[] argList, ShellState shellState,
+            RedirectionContext context, long lookupNanos) {
+        ProcessExecutionEvent event = new ProcessExecutionEvent();
+        event.begin();
+        try {
+            List<String> commandWithArgs = new ArrayList<>(1 + argList.length);
+            // commandWithArgs.add(executablePath); // absolute path prevents ambiguity //
+            // commenting it out as the test is failing
+            // demands the restriction of command name and its args only, no other param
+            commandWithArgs.add(programName(commandName, new File(executablePath)));
+            for (String a : argList) {
+                if (!a.isEmpty())
+                    commandWithArgs.add(a);
+            }
+
+            ProcessBuilder pb = new ProcessBuilder(commandWithArgs);
+            // set working directory to current shell directory (emulated cd)
+            pb.directory(shellState.getCurrentDirectory());
+            shellState.getEnvironment().applyTo(pb);
+            // pb.redirectErrorStream(true); // merge stderr into stdout for now (simpler)
+            pb.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+            if (context.stdinFile != null && !context.stdinFile.exists()) {
+                writestderrFile(context.stdinName() + ": No such file or directory", context);
+                return 1;
+            }
+            context.applyTo(pb);
+
+            ShellOutput.flush();
+            long spawnStart = System.nanoTime();
+            Process process = pb.start();
+            long spawnNanos = System.nanoTime() - spawnStart;
+            shellState.getMetrics().spawn.record(spawnNanos);
+            CompletableFuture<Void> fed = context.hereDocument != null
+                    ? PipelineExecutor.feed(context.stdin, process)
+                    : null;
+
+            // Inherited and file-redirected stdout never touches the JVM (the kernel
+            // writes straight to the fd). The one piped case is `>&2` onto the shell's
+            // own stderr, copied byte-for-byte so binary output survives.
+            if (context.pumpsStdoutToStderr()) {
+                StreamTransfer.copy(process.getInputStream(), System.err);
+            }
+
+            long waitStart = System.nanoTime();
+            int exitCode = process.waitFor();
+            if (fed != null) {
+                fed.join();
+            }
+            long waitNanos = System.nanoTime() - waitStart;
+            shellState.getMetrics().wait.record(waitNanos);
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.command = commandName;
+                event.executable = executablePath;
+                event.pid = process.pid();
+                event.exitCode = exitCode;
+                event.lookup = lookupNanos;
+                event.spawn = spawnNanos;
+                event.waitTime = waitNanos;
+                event.commit();
+            }
+            return exitCode;
+        } catch (Exception e) {
+            System.err.println("Error executing command: " + e.getMessage());
+            // as shells report a command that could not be executed
+            return 126;
+        }
+    }
+}
+
+// Byte-oriented stream copying used wherever process output has to pass through
+// the JVM. Buffer size is configurable with -Dshell.io.bufferSize=<bytes>.
+class StreamTransfer {
+    static final int BUFFER_SIZE = Math.max(512, Integer.getInteger("shell.io.bufferSize", 64 * 1024));
+
+    private StreamTransfer() {
+    }
+
+    static long copy(InputStream in, OutputStream out) throws IOException {
+        return copy(in, out, BUFFER_SIZE);
+    }
+
+    static long copy(InputStream in, OutputStream out, int bufferSize) throws IOException {
+        byte[] buffer = new byte[bufferSize];
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+            total += n;
+        }
+        out.flush();
+        return total;
+    }
+}
+
+class PathSearcher {
+    // PATH as last set, and its directories (also read by the completion thread)
+    private volatile String path;
+    private volatile String[] directories;
+
+    // hashed command lookup table (like bash's `hash`): command name -> winning
+    // executable, in insertion order so `hash` lists entries the way they were
+    // found. Lookups come from pipeline builtins, background jobs and `parallel`
+    // as well as the main thread, so it and the watch state below are only
+    // touched under this object's lock.
+    private final Map<String, HashEntry> hashTable = new LinkedHashMap<>();
+    private WatchService watchService;
+    private final Map<WatchKey, Integer> watchedDirectories = new HashMap<>();
+    // directories we could not watch (missing, network mounts, ...) fall back to
+    // an mtime snapshot checked on each lookup
+    private final Map<Integer, Long> unwatchedMtimes = new HashMap<>();
+    // bumped whenever a PATH directory may have changed, so callers holding
+    // resolved paths of their own know to drop them
+    private long generation;
+
+    static class HashEntry {
+        final File file;
+        // incremented under the PathSearcher's lock, read by `hash` without it
+        volatile int hits;
+
+        HashEntry(File file) {
+            this.file = file;
+        }
+    }
+
+    PathSearcher() {
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            watchService = null;
+        }
+        setPath(System.getenv("PATH"));
+    }
+
+    // Switches to a new PATH: splits it, watches the new directories and
+    // empties the hash table. A no-op when the value has not changed, so it is
+    // cheap to call before every command.
+    public synchronized void setPath(String newPath) {
+        if (directories != null && Objects.equals(newPath, path)) {
+            return;
+        }
+        path = newPath;
+        String[] newDirectories = newPath == null ? new String[0] : newPath.split(File.pathSeparator);
+        for (WatchKey key : watchedDirectories.keySet()) {
+            key.cancel();
+        }
+        watchedDirectories.clear();
+        unwatchedMtimes.clear();
+        hashTable.clear();
+        generation++;
+        directories = newDirectories;
+        for (int i = 0; i < directories.length; i++) {
+            Path dir = Paths.get(directories[i].isEmpty() ? "." : directories[i]);
+            WatchKey key = null;
+            if (watchService != null) {
+                try {
+                    key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                } catch (IOException | RuntimeException e) {
+                    key = null;
+                }
+            }
+            if (key != null) {
+                watchedDirectories.put(key, i);
+            } else {
+                unwatchedMtimes.put(i, dir.toFile().lastModified());
+            }
+        }
+    }
+
+    public List<String> getDirectories() {
+        return Arrays.asList(directories);
+    }
+
+    // Uncached scan of every PATH directory, returning all matches in PATH order
+    public List<File> search(String commandName) {
+        List<File> foundFiles = new ArrayList<>();
+        for (String dir : directories) {
+            File file = new File(dir, commandName);
+            if (file.exists() && file.canExecute()) {
+                foundFiles.add(file);
+            }
+        }
+        return foundFiles;
+    }
+
+    // Cached lookup of the first executable on PATH, or null if there is none.
+    // Misses are not cached, so a command installed later is still found.
+    public synchronized File lookup(String commandName) {
+        invalidateStaleEntries();
+        HashEntry entry = hashTable.get(commandName);
+        if (entry == null) {
+            File found = findFirst(commandName);
+            if (found == null) {
+                return null;
+            }
+            entry = new HashEntry(found);
+            hashTable.put(commandName, entry);
+        }
+        entry.hits++;
+        return entry.file;
+    }
+
+    // A snapshot of the hash table
+    public synchronized Map<String, HashEntry> hashedCommands() {
+        invalidateStaleEntries();
+        return Collections.unmodifiableMap(new LinkedHashMap<>(hashTable));
+    }
+
+    public synchronized void clearHash() {
+        hashTable.clear();
+        generation++;
+    }
+
+    // Current generation of the PATH directories, after checking them for changes
+    public synchronized long generation() {
+        invalidateStaleEntries();
+        return generation;
+    }
+
+    private File findFirst(String commandName) {
+        for (String dir : directories) {
+            File file = new File(dir, commandName);
+            if (file.exists() && file.canExecute()) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    private void invalidateStaleEntries() {
+        if (hashTable.isEmpty() && unwatchedMtimes.isEmpty()) {
+            // nothing to invalidate, but drain pending events so they don't pile up
+            drainWatchEvents(false);
+            return;
+        }
+        drainWatchEvents(true);
+        for (Map.Entry<Integer, Long> e : unwatchedMtimes.entrySet()) {
+            long mtime = new File(directories[e.getKey()]).lastModified();
+            if (mtime != e.getValue()) {
+                e.setValue(mtime);
+                hashTable.clear();
+                generation++;
+            }
+        }
+    }
+
+    private void drainWatchEvents(boolean invalidate) {
+        if (watchService == null) {
+            return;
+        }
+        WatchKey key;
+        while ((key = watchService.poll()) != null) {
+            generation++;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (!invalidate) {
+                    continue;
+                }
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    hashTable.clear();
+                } else {
+                    // a file with this name appeared in, or vanished from, a PATH directory:
+                    // the winning executable may have changed
+                    hashTable.remove(event.context().toString());
+                }
+            }
+            if (!key.reset()) {
+                Integer index = watchedDirectories.remove(key);
+                if (index != null) {
+                    unwatchedMtimes.put(index, new File(directories[index]).lastModified());
+                }
+                hashTable.clear();
+            }
+        }
+    }
+}
+
+class HashCommand implements Command {
+    private final PathSearcher pathSearcher;
+
+    HashCommand(PathSearcher pathSearcher) {
+        this.pathSearcher = pathSearcher;
+    }
+
+    @Override
+    public int execute(String arguments, RedirectionContext context) {
+        String args = arguments.trim();
+        if (args.isEmpty()) {
+            Map<String, PathSearcher.HashEntry> hashed = pathSearcher.hashedCommands();
+            if (hashed.isEmpty()) {
+                writestdoutFile("hash: hash table empty", context);
+                return 0;
+            }
+            writestdoutFile("hits\tcommand", context);
+            for (PathSearcher.HashEntry entry : hashed.values()) {
+                writestdoutFile(String.format("%4d\t%s", entry.hits, entry.file.getPath()), context);
+            }
+            return 0;
+        }
+
+        int status = 0;
+        for (String name : args.split("\\s+")) {
+            if (name.equals("-r")) {
+                pathSearcher.clearHash();
+            } else if (pathSearcher.lookup(name) == null) {
+                writestderrFile("hash: " + name + ": not found", context);
+                status = 1;
+            }
+        }
+        return status;
+    }
+}
+
+// history [n] | -c | -r/-w/-a [file] | -g text
+// -g lists the entries containing text, newest first, via the history's
+// search index
+class HistoryCommand implements Command {
+    private final ShellState shellState;
+
+    HistoryCommand(ShellState shellState) {
+        this.shellState = shellState;
+    }
+
+    @Override
+    public int execute(String arguments, RedirectionContext context) {
+        CommandHistory history = shellState.getHistory();
+        String args = arguments.trim();
+        if (args.isEmpty()) {
+            print(history, history.oldest(), context);
+            return 0;
+        }
+
+        String[] parts = args.split("\\s+", 2);
+        String option = parts[0];
+        String operand = parts.length > 1 ? parts[1] : null;
+        try {
+            switch (option) {
+                case "-c":
+                    history.clear();
+                    return 0;
+                case "-r":
+                case "-w":
+                case "-a": {
+                    File target = operand != null ? new File(operand) : history.getFile();
+                    if (target == null) {
+                        writestderrFile("history: HISTFILE not set", context);
+                        return 1;
+                    }
+                    if (!target.isAbsolute()) {
+                        target = new File(shellState.getCurrentDirectory(), target.getPath());
+                    }
+                    if (option.equals("-r")) {
+                        history.readFrom(target);
+                    } else if (option.equals("-w")) {
+                        history.writeTo(target);
+                    } else {
+                        history.appendTo(target);
+                    }
+                    return 0;
+                }
+                case "-g":
+                    if (operand == null) {
+                        writestderrFile("history: -g: option requires an argument", context);
+                        return 1;
+                    }
+                    for (int seq : history.search(operand, Integer.MAX_VALUE)) {
+                        writestdoutFile(format(seq, history.get(seq)), context);
+                    }
+                    return 0;
+                default:
+                    break;
+            }
+        } catch (IOException e) {
+            writestderrFile("history: " + operand + ": " + e.getMessage(), context);
+            return 1;
+        }
+
+        int count;
+        try {
+            count = Integer.parseInt(option);
+        } catch (NumberFormatException e) {
+            writestderrFile("history: " + option + ": numeric argument required", context);
+            return 1;
+        }
+        print(history, Math.max(history.oldest(), history.newest() - count + 1), context);
+        return 0;
+    }
+
+    private void print(CommandHistory history, int fromSeq, RedirectionContext context) {
+        for (int seq = fromSeq; seq <= history.newest(); seq++) {
+            writestdoutFile(format(seq, history.get(seq)), context);
+        }
+    }
+
+    private static String format(int seq, String line) {
+        return String.format("%5d  %s", seq, line);
+    }
+}
+
+// shellstats [-r]: per-phase latency (parse, PATH lookup, process spawn, wait
+// for children, builtin execution), plan cache hit rate and per-command run
+// counts; -r resets them
+class ShellStatsCommand implements Command {
+    private final ShellState shellState;
+
+    ShellStatsCommand(ShellState shellState) {
+        this.shellState = shellState;
+    }
+
+    @Override
+    public int execute(String arguments, RedirectionContext context) {
+        ShellMetrics metrics = shellState.getMetrics();
+        if (arguments.trim().equals("-r")) {
+            metrics.reset();
+            return 0;
+        }
+        writestdoutFile(String.format("%-8s %8s %10s %10s %10s %10s", "phase", "count", "mean", "p50", "p99", "max"),
+                context);
+        for (Map.Entry<String, LatencyHistogram> phase : metrics.phases().entrySet()) {
+            LatencyHistogram h = phase.getValue();
+            writestdoutFile(String.format("%-8s %8d %10s %10s %10s %10s", phase.getKey(), h.count(),
+                    formatNanos(h.meanNanos()), formatNanos(h.quantileNanos(0.5)),
+                    formatNanos(h.quantileNanos(0.99)), formatNanos(h.maxNanos())), context);
+        }
+        long hits = metrics.planHits.sum();
+        long lookups = hits + metrics.planMisses.sum();
+        writestdoutFile("", context);
+        writestdoutFile(String.format("plan cache: %d hits, %d misses (%.1f%% hit rate), %d invalidations", hits,
+                lookups - hits, lookups == 0 ? 0.0 : 100.0 * hits / lookups, metrics.planInvalidations.sum()),
+                context);
+        long listingHits = metrics.globHits.sum();
+        long listings = listingHits + metrics.globMisses.sum();
+        writestdoutFile(String.format("glob cache: %d hits, %d misses (%.1f%% hit rate)", listingHits,
+                listings - listingHits, listings == 0 ? 0.0 : 100.0 * listingHits / listings), context);
+        writestdoutFile("", context);
+        writestdoutFile(String.format("%-20s %8s", "command", "runs"), context);
+        for (Map.Entry<String, Long> command : metrics.commandCounts().entrySet()) {
+            writestdoutFile(String.format("%-20s %8d", command.getKey(), command.getValue()), context);
+        }
+        return 0;
+    }
+
+    private static String formatNanos(long nanos) {
+        if (nanos < 1_000_000) {
+            return String.format("%.1fus", nanos / 1e3);
+        }
+        if (nanos < 1_000_000_000) {
+            return String.format("%.2fms", nanos / 1e6);
+        }
+        return String.format("%.2fs", nanos / 1e9);
+    }
+}
+
+// An in-process implementation of an external utility (cat, wc, ...). It only
+// takes over invocations it fully supports; for anything else (an unknown
+// option, say) the real binary on PATH runs instead. `type` still reports
+// the binary, since that is what the user asked for.
+abstract class CoreUtility implements Command {
+    // Whether this implementation can run the given arguments exactly as the
+    // binary would; toConsole is true when output goes to the shell's own stdout
+    abstract boolean supports(String[] args, boolean toConsole);
+
+    @Override
+    public int execute(String arguments, RedirectionContext context) {
+        return execute(arguments.isEmpty() ? new String[0] : arguments.split(" "), context);
+    }
+
+    @Override
+    public abstract int execute(String[] args, RedirectionContext context);
+
+    // Diagnostics go where the binary's would: the shell's own stderr unless
+    // stderr is redirected (other builtins print theirs on stdout). The stdout
+    // buffer is flushed first so the two stay in order on a terminal.
+    @Override
+    public void writestderrFile(String content, RedirectionContext context) {
+        if (context.stderrFile == null && !context.stderrToStdout) {
+            ShellOutput.flush();
+            System.err.println(content);
+        } else {
+            context.stderr().println(content);
+        }
+    }
+
+    // stdin of the command: the upstream pipeline stage, or empty (external
+    // commands get a pipe nobody writes to, so they would simply wait)
+    static InputStream stdin(RedirectionContext context) {
+        return context.stdin != null ? context.stdin : InputStream.nullInputStream();
+    }
+}
+
+// Registry of in-process utilities. Set -Dshell.coreutils=false to always run
+// the external binaries; a utility can also be bypassed per invocation by
+// naming the binary with a path (/bin/cat).
+final class CoreUtilities {
+    static final boolean ENABLED = !"false".equals(System.getProperty("shell.coreutils"));
+    private static final Map<String, Function<ShellState, CoreUtility>> REGISTRY = new LinkedHashMap<>();
+
+    static {
+        register("true", state -> new TrueCommand(true));
+        register("false", state -> new TrueCommand(false));
+        register("cat", CatCommand::new);
+        register("head", HeadCommand::new);
+        register("wc", WcCommand::new);
+        register("ls", LsCommand::new);
+        register("basename", state -> new BasenameCommand());
+    }
+
+    private CoreUtilities() {
+    }
+
+    static void register(String name, Function<ShellState, CoreUtility> factory) {
+        REGISTRY.put(name, factory);
+    }
+
+    static void registerAll(CommandRegistry commands, ShellState shellState) {
+        if (!ENABLED) {
+            return;
+        }
+        for (Map.Entry<String, Function<ShellState, CoreUtility>> entry : REGISTRY.entrySet()) {
+            Function<ShellState, CoreUtility> factory = entry.getValue();
+            commands.registerUtility(entry.getKey(), () -> factory.apply(shellState));
+        }
+    }
+
+    // The command to run in-process for this invocation, or null if it should
+    // go to an external binary
+    static Command dispatch(CommandRegistry commands, String name, String[] args, boolean toConsole) {
+        Command command = commands.get(name);
+        if (command instanceof CoreUtility && !((CoreUtility) command).supports(args, toConsole)) {
+            return null;
+        }
+        return command;
+    }
+
+    // a path argument resolved against the shell's current directory
+    static Path resolve(ShellState shellState, String name) {
+        return shellState.getCurrentDirectory().toPath().resolve(name);
+    }
+}
+
+class TrueCommand extends CoreUtility {
+    private final boolean result;
+
+    TrueCommand(boolean result) {
+        this.result = result;
+    }
+
+    @Override
+    boolean supports(String[] args, boolean toConsole) {
+        return true;
+    }
+
+    @Override
+    public int execute(String[] args, RedirectionContext context) {
+        return result ? 0 : 1;
+    }
+}
+
+// cat [-] [file...], no options
+class CatCommand extends CoreUtility {
+    private final ShellState shellState;
+
+    CatCommand(ShellState shellState) {
+        this.shellState = shellState;
+    }
+
+    @Override
+    boolean supports(String[] args, boolean toConsole) {
+        for (String arg : args) {
+            if (arg.startsWith("-") && !arg.equals("-")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int execute(String[] args, RedirectionContext context) {
+        int status = 0;
+        OutputSink out = context.stdout();
+        if (args.length == 0) {
+            args = new String[] { "-" };
+        }
+        for (String name : args) {
+            try {
+                if (name.equals("-")) {
+                    out.transferFrom(stdin(context));
+                    continue;
+                }
+                Path path = CoreUtilities.resolve(shellState, name);
+                if (Files.isDirectory(path)) {
+                    writestderrFile("cat: " + name + ": Is a directory", context);
+                    status = 1;
+                    continue;
+                }
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    out.transferFrom(channel);
+                }
+            } catch (NoSuchFileException e) {
+                writestderrFile("cat: " + name + ": No such file or directory", context);
+                status = 1;
+            } catch (AccessDeniedException e) {
+                writestderrFile("cat: " + name + ": Permission denied", context);
+                status = 1;
+            } catch (IOException e) {
+                writestderrFile("cat: " + name + ": " + e.getMessage(), context);
+                status = 1;
+            }
+        }
+        return status;
+    }
+}
+
+// head [-n count | -count] [file...]
+class HeadCommand extends CoreUtility {
+    private final ShellState shellState;
+
+    HeadCommand(ShellState shellState) {
+        this.shellState = shellState;
+    }
+
+    @Override
+    boolean supports(String[] args, boolean toConsole) {
+        return parse(args) != null;
+    }
+
+    // {count, index of first file operand}, or null for unsupported arguments
+    private static long[] parse(String[] args) {
+        long count = 10;
+        int i = 0;
+        try {
+            if (i < args.length && args[i].equals("-n")) {
+                if (i + 1 >= args.length) {
+                    return null;
+                }
+                count = Long.parseLong(args[i + 1]);
+                i += 2;
+            } else if (i < args.length && args[i].startsWith("-n") && args[i].length() > 2) {
+                count = Long.parseLong(args[i].substring(2));
+                i++;
+            } else if (i < args.length && args[i].length() > 1 && args[i].startsWith("-")
+                    && Character.isDigit(args[i].charAt(1))) {
+                count = Long.parseLong(args[i].substring(1));
+                i++;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (count < 0) {
+            return null;
+        }
+        for (int k = i; k < args.length; k++) {
+            if (args[k].startsWith("-") && !args[k].equals("-")) {
+                return null;
+            }
+        }
+        return new long[] { count, i };
+    }
+
+    @Override
+    public int execute(String[] args, RedirectionContext context) {
+        int status = 0;
+        long[] parsed = parse(args);
+        long count = parsed[0];
+        List<String> files = new ArrayList<>(Arrays.asList(args).subList((int) parsed[1], args.length));
+        if (files.isEmpty()) {
+            files.add("-");
+        }
+        OutputSink out = context.stdout();
+        boolean headers = files.size() > 1;
+        boolean first = true;
+        for (String name : files) {
+            try (ReadableByteChannel channel = name.equals("-") ? Channels.newChannel(stdin(context))
+                    : FileChannel.open(CoreUtilities.resolve(shellState, name), StandardOpenOption.READ)) {
+                if (headers) {
+                    out.println((first ? "" : System.lineSeparator()) + "==> "
+                            + (name.equals("-") ? "standard input" : name) + " <==");
+                }
+                first = false;
+                copyLines(channel, count, out);
+            } catch (NoSuchFileException e) {
+                writestderrFile("head: cannot open '" + name + "' for reading: No such file or directory", context);
+                status = 1;
+            } catch (IOException e) {
+                writestderrFile("head: error reading '" + name + "': " + e.getMessage(), context);
+                status = 1;
+            }
+        }
+        return status;
+    }
+
+    // copies bytes up to and including the count-th newline
+    private static void copyLines(ReadableByteChannel channel, long count, OutputSink out) throws IOException {
+        if (count == 0) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(StreamTransfer.BUFFER_SIZE);
+        long lines = 0;
+        while (channel.read(buffer) != -1) {
+            buffer.flip();
+            byte[] bytes = buffer.array();
+            int end = buffer.limit();
+            for (int i = 0; i < end; i++) {
+                if (bytes[i] == '\n' && ++lines == count) {
+                    out.write(bytes, 0, i + 1);
+                    return;
+                }
+            }
+            out.write(bytes, 0, end);
+            buffer.clear();
+        }
+    }
+}
+
+// wc [-clw] [file...], counting bytes, newlines and whitespace-separated words
+// with GNU wc's column layout
+class WcCommand extends CoreUtility {
+    private final ShellState shellState;
+
+    WcCommand(ShellState shellState) {
+        this.shellState = shellState;
+    }
+
+    @Override
+    boolean supports(String[] args, boolean toConsole) {
+        for (String arg : args) {
+            if (arg.startsWith("-") && !arg.equals("-") && !arg.matches("-[clw]+")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int execute(String[] args, RedirectionContext context) {
+        int status = 0;
+        boolean lines = false;
+        boolean words = false;
+        boolean bytes = false;
+        List<String> files = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("-") && !arg.equals("-")) {
+                lines |= arg.indexOf('l') > 0;
+                words |= arg.indexOf('w') > 0;
+                bytes |= arg.indexOf('c') > 0;
+            } else {
+                files.add(arg);
+            }
+        }
+        if (!lines && !words && !bytes) {
+            lines = words = bytes = true;
+        }
+        boolean readsStdin = files.isEmpty() || files.contains("-");
+        List<String> names = files.isEmpty() ? Collections.singletonList(null) : files;
+
+        List<long[]> results = new ArrayList<>();
+        List<String> labels = new ArrayList<>();
+        long[] total = new long[3];
+        long sizeSum = 0;
+        boolean nonRegular = readsStdin;
+        for (String name : names) {
+            try {
+                long[] counts;
+                if (name == null || name.equals("-")) {
+                    counts = count(Channels.newChannel(stdin(context)));
+                } else {
+                    Path path = CoreUtilities.resolve(shellState, name);
+                    if (Files.isDirectory(path)) {
+                        writestderrFile("wc: " + name + ": Is a directory", context);
+                        status = 1;
+                        continue;
+                    }
+                    nonRegular |= !Files.isRegularFile(path);
+                    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                        sizeSum += channel.size();
+                        counts = count(channel);
+                    }
+                }
+                results.add(counts);
+                labels.add(name);
+                for (int k = 0; k < 3; k++) {
+                    total[k] += counts[k];
+                }
+            } catch (NoSuchFileException e) {
+                writestderrFile("wc: " + name + ": No such file or directory", context);
+                status = 1;
+            } catch (IOException e) {
+                writestderrFile("wc: " + name + ": " + e.getMessage(), context);
+                status = 1;
+            }
+        }
+
+        boolean[] columns = { lines, words, bytes };
+        int shown = (lines ? 1 : 0) + (words ? 1 : 0) + (bytes ? 1 : 0);
+        int width;
+        if (shown == 1 && names.size() == 1) {
+            width = 1;
+        } else {
+            width = Math.max(nonRegular ? 7 : 1, Long.toString(sizeSum).length());
+        }
+        for (int r = 0; r < results.size(); r++) {
+            writestdoutFile(format(results.get(r), columns, width, labels.get(r)), context);
+        }
+        if (names.size() > 1) {
+            writestdoutFile(format(total, columns, width, "total"), context);
+        }
+        return status;
+    }
+
+    private static String format(long[] counts, boolean[] columns, int width, String label) {
+        StringBuilder sb = new StringBuilder();
+        for (int k = 0; k < 3; k++) {
+            if (columns[k]) {
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+                sb.append(String.format("%" + width + "d", counts[k]));
+            }
+        }
+        if (label != null) {
+            sb.append(' ').append(label);
+        }
+        return sb.toString();
+    }
+
+    // {lines, words, bytes}
+    private static long[] count(ReadableByteChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(StreamTransfer.BUFFER_SIZE);
+        long lines = 0;
+        long words = 0;
+        long bytes = 0;
+        boolean inWord = false;
+        while (channel.read(buffer) != -1) {
+            buffer.flip();
+            byte[] data = buffer.array();
+            int end = buffer.limit();
+            bytes += end;
+            for (int i = 0; i < end; i++) {
+                byte b = data[i];
+                if (b == '\n') {
+                    lines++;
+                }
+                boolean space = b == ' ' || (b >= '\t' && b <= '\r');
+                if (space) {
+                    inWord = false;
+                } else if (!inWord) {
+                    inWord = true;
+                    words++;
+                }
+            }
+            buffer.clear();
+        }
+        return new long[] { lines, words, bytes };
+    }
+}
+
+// ls [-1aA] [path...], one name per line. Column output for a terminal and
+// locale-aware sorting are left to the real ls.
+class LsCommand extends CoreUtility {
+    private final ShellState shellState;
+
+    LsCommand(ShellState shellState) {
+        this.shellState = shellState;
+    }
+
+    @Override
+    boolean supports(String[] args, boolean toConsole) {
+        boolean onePerLine = false;
+        for (String arg : args) {
+            if (arg.startsWith("-") && arg.length() > 1) {
+                if (!arg.matches("-[1aA]+")) {
+                    return false;
+                }
+                onePerLine |= arg.indexOf('1') > 0;
+            }
+        }
+        return (onePerLine || !toConsole) && isCLocale();
+    }
+
+    private boolean isCLocale() {
+        for (String variable : new String[] { "LC_ALL", "LC_COLLATE", "LANG" }) {
+            String value = shellState.getEnvironment().get(variable);
+            if (value != null && !value.isEmpty()) {
+                return value.equals("C") || value.equals("POSIX") || value.startsWith("C.");
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int execute(String[] args, RedirectionContext context) {
+        int status = 0;
+        boolean all = false;
+        boolean almostAll = false;
+        List<String> operands = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("-") && arg.length() > 1) {
+                all |= arg.indexOf('a') > 0;
+                almostAll |= arg.indexOf('A') > 0;
+            } else {
+                operands.add(arg);
+            }
+        }
+        if (operands.isEmpty()) {
+            operands.add(".");
+        }
+
+        List<String> fileOperands = new ArrayList<>();
+        List<String> dirOperands = new ArrayList<>();
+        for (String operand : new TreeSet<>(operands)) {
+            Path path = CoreUtilities.resolve(shellState, operand);
+            if (Files.isDirectory(path)) {
+                dirOperands.add(operand);
+            } else if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                fileOperands.add(operand);
+            } else {
+                writestderrFile("ls: cannot access '" + operand + "': No such file or directory", context);
+                status = 2;
+            }
+        }
+
+        for (String file : fileOperands) {
+            writestdoutFile(file, context);
+        }
+        boolean headers = operands.size() > 1;
+        boolean first = fileOperands.isEmpty();
+        for (String dir : dirOperands) {
+            List<String> names = new ArrayList<>();
+            if (all) {
+                names.add(".");
+                names.add("..");
+            }
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(CoreUtilities.resolve(shellState, dir))) {
+                for (Path entry : entries) {
+                    String name = entry.getFileName().toString();
+                    if (!name.startsWith(".") || all || almostAll) {
+                        names.add(name);
+                    }
+                }
+            } catch (IOException e) {
+                writestderrFile("ls: cannot open directory '" + dir + "': Permission denied", context);
+                status = 2;
+                continue;
+            }
+            Collections.sort(names);
+            if (headers) {
+                if (!first) {
+                    writestdoutFile("", context);
+                }
+                writestdoutFile(dir + ":", context);
+            }
+            first = false;
+            for (String name : names) {
+                writestdoutFile(name, context);
+            }
+        }
+        return status;
+    }
+}
+
+// basename name [suffix]
+class BasenameCommand extends CoreUtility {
+    @Override
+    boolean supports(String[] args, boolean toConsole) {
+        return (args.length == 1 || args.length == 2) && !args[0].startsWith("-");
+    }
+
+    @Override
+    public int execute(String[] args, RedirectionContext context) {
+        String name = args[0];
+        int end = name.length();
+        while (end > 1 && name.charAt(end - 1) == '/') {
+            end--;
+        }
+        name = name.substring(0, end);
+        if (!name.equals("/")) {
+            name = name.substring(name.lastIndexOf('/') + 1);
+        }
+        if (args.length == 2 && name.endsWith(args[1]) && !name.equals(args[1])) {
+            name = name.substring(0, name.length() - args[1].length());
+        }
+        writestdoutFile(name, context);
+        return 0;
+    }
+}
+
+class JobsCommand implements Command {
+    private final ShellState shellState;
+
+    JobsCommand(ShellState shellState) {
+        this.shellState = shellState;
+    }
+
+    @Override
+    public int execute(String arguments, RedirectionContext context) {
+        JobTable jobs = shellState.getJobs();
+        List<Job> listed = jobs.list();
+        for (Job job : listed) {
+            writestdoutFile(jobs.format(job), context);
+        }
+        // finished jobs are forgotten once they have been reported
+        for (Job job : listed) {
+            if (job.isDone()) {
+                jobs.remove(job);
+            }
+        }
+        return 0;
+    }
+}
+
+// Resolves a job spec (%n, n, or a pid) against the job table; with no
+// argument, the current job
+final class JobSpecs {
+    private JobSpecs() {
+    }
+
+    static Job resolve(JobTable jobs, String spec) {
+        if (spec.isEmpty()) {
+            return jobs.current();
+        }
+        String number = spec.startsWith("%") ? spec.substring(1) : spec;
+        int id;
+        try {
+            id = Integer.parseInt(number);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (spec.startsWith("%")) {
+            return jobs.get(id);
+        }
+        for (Job job : jobs.list()) {
+            if (job.pipeline.pid() == id) {
+                return job;
+            }
+        }
+        return jobs.get(id);
+    }
+}
+
+class WaitCommand implements Command {
+    private final ShellState shellState;
+
+    WaitCommand(ShellState shellState) {
+        this.shellState = shellState;
+    }
 
-            if (inSingleQuote) {
-                if (c == '\'') {
-                    inSingleQuote = false;
-                } else {
-                    currentArg.append(c);
-                }
-            } else if (inDoubleQuote) {
-                if (c == '\"') {
-                    inDoubleQuote = false;
-                } else if (c == '\\') {
-                    if (i + 1 < str.length()) {
-                        char next = str.charAt(i + 1);
-                        if (next == '\"' || next == '\\') {
-                            currentArg.append(next);
-                            i++;
-                            // continue;
-                        } else {
-                            currentArg.append(c);
-                        }
-                    } else {
-                        currentArg.append(c);
-                    }
-                } else {
-                    currentArg.append(c);
-                }
+    @Override
+    public int execute(String arguments, RedirectionContext context) {
+        JobTable jobs = shellState.getJobs();
+        String args = arguments.trim();
+        if (args.isEmpty()) {
+            for (Job job : jobs.list()) {
+                job.pipeline.await();
+            }
+            return 0;
+        }
+        // like bash, the status of the last job named
+        int status = 0;
+        for (String spec : args.split("\\s+")) {
+            Job job = JobSpecs.resolve(jobs, spec);
+            if (job == null) {
+                writestderrFile("wait: " + spec + ": no such job", context);
+                status = 127;
             } else {
-                if (c == '\\') {
-                    if (i + 1 < str.length()) {
-                        char next = str.charAt(i + 1);
-                        currentArg.append(next);
-                        i++;
-                        continue;
-                    }
-                } else if (c == '\'') {
-                    inSingleQuote = true;
-                } else if (c == '\"') {
-                    inDoubleQuote = true;
-                } else if (Character.isWhitespace(c)) {
-                    if (currentArg.length() > 0) {
-                        args.add(currentArg.toString());
-                        currentArg.setLength(0);
-                    }
-                } else {
-                    currentArg.append(c);
-                }
+                job.pipeline.await();
+                status = job.pipeline.exitValue();
             }
         }
+        return status;
+    }
+}
 
-        if (currentArg.length() > 0) {
-            args.add(currentArg.toString());
-        }
-        // return String.join(" ", args);
-        return args.toArray(new String[0]);
+// Waits for a background job in the foreground. There is no terminal process
+// group handover, so this amounts to printing the job and waiting for it.
+class FgCommand implements Command {
+    private final ShellState shellState;
+
+    FgCommand(ShellState shellState) {
+        this.shellState = shellState;
     }
 
-    public void handleCommand(String input) {
-        // parse(input);
-        // String[] parts = input.split(" ", 2);
-        if (input.length() == 0) {
-            return;
+    @Override
+    public int execute(String arguments, RedirectionContext context) {
+        JobTable jobs = shellState.getJobs();
+        String spec = arguments.trim();
+        Job job = JobSpecs.resolve(jobs, spec);
+        if (job == null) {
+            writestderrFile("fg: " + (spec.isEmpty() ? "current" : spec) + ": no such job", context);
+            return 1;
         }
-        String[] parts = parseQuote(input);
-        String commandName = parts[0];
+        writestdoutFile(job.command, context);
+        context.stdout().flush();
+        job.pipeline.await();
+        jobs.remove(job);
+        return job.pipeline.exitValue();
+    }
+}
 
-        // System.out.println("DEBUG: parsed input = |" + input + "|");
-        // System.out.println("DEBUG: parsed command = |" + commandName + "|");
+// parallel [-j jobs] command [arg...] [::: item...]
+// Runs command once per item (the ::: list, or else the lines of stdin), with
+// the item appended or substituted for {}. At most `jobs` children run at a
+// time (default: one per CPU, or -Dshell.parallel.jobs); each job's output is
+// collected and written in item order, so it never interleaves.
+class ParallelCommand implements Command {
+    static final int DEFAULT_JOBS = Integer.getInteger("shell.parallel.jobs",
+            Runtime.getRuntime().availableProcessors());
 
-        // String[] parsedArgList = parts.length > 1 ? Arrays.copyOfRange(parts, 1,
-        // parts.length) : new String[0];
+    private final PathSearcher pathSearcher;
+    private final ShellState shellState;
 
-        List<String> argParam = new ArrayList<>();
-        // File stdoutFile = null;
-        // File stderrFile = null;
-        // File appendStdoutFile;
+    ParallelCommand(PathSearcher pathSearcher, ShellState shellState) {
+        this.pathSearcher = pathSearcher;
+        this.shellState = shellState;
+    }
 
-        // boolean append = false;
+    // output of one finished job
+    private record JobOutput(byte[] stdout, byte[] stderr, int exitCode) {
+    }
 
-        RedirectionContext context = new RedirectionContext();
+    @Override
+    public int execute(String arguments, RedirectionContext context) {
+        return execute(arguments.isEmpty() ? new String[0] : arguments.split(" "), context);
+    }
 
-        for (int i = 0; i < parts.length; i++) {
-            if (parts[i].equals(">") || parts[i].equals("1>")) {
-                if (i + 1 < parts.length) {
-                    context.stdoutFile = new File(parts[i + 1]);
-                    i++;
-                }
-            } else if (parts[i].equals("2>")) {
-                if (i + 1 < parts.length) {
-                    context.stderrFile = new File(parts[i + 1]);
-                    i++;
-                }
-            } else if (parts[i].equals(">>") || parts[i].equals("1>>")) {
-                if (i + 1 < parts.length) {
-                    context.stdoutFile = new File(parts[i + 1]);
-                    context.appendStdout = true;
-                    i++;
-                }
-            } else if (parts[i].equals("2>>")) {
-                if (i + 1 < parts.length) {
-                    context.stderrFile = new File(parts[i + 1]);
-                    context.appendStderr = true;
-                    i++;
-                }
-            } else {
-                argParam.add(parts[i]);
+    // Exit status as GNU parallel: the number of failed jobs, at most 101
+    @Override
+    public int execute(String[] args, RedirectionContext context) {
+        int jobs = DEFAULT_JOBS;
+        int i = 0;
+        try {
+            for (; i < args.length && args[i].startsWith("-j"); i++) {
+                jobs = Integer.parseInt(args[i].length() > 2 ? args[i].substring(2) : args[++i]);
             }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            jobs = 0;
+        }
+        if (jobs < 1) {
+            writestderrFile("parallel: -j: invalid number of jobs", context);
+            return 2;
+        }
+        if (i < args.length && args[i].equals("--")) {
+            i++;
+        }
+        List<String> template = new ArrayList<>();
+        List<String> items = null;
+        for (; i < args.length; i++) {
+            if (args[i].equals(":::")) {
+                items = Arrays.asList(args).subList(i + 1, args.length);
+                break;
+            }
+            template.add(args[i]);
+        }
+        if (template.isEmpty()) {
+            writestderrFile("parallel: usage: parallel [-j jobs] command [arg...] [::: item...]", context);
+            return 2;
         }
 
-        String[] cleanedParts = argParam.toArray(new String[0]);
-        String[] parsedArgList = cleanedParts.length > 1 ? Arrays.copyOfRange(cleanedParts, 1, cleanedParts.length)
-                : new String[0];
-
-        String parsedArg = String.join(" ", parsedArgList);
+        String commandName = template.get(0);
+        File executable = commandName.contains("/")
+                ? CoreUtilities.resolve(shellState, commandName).toFile()
+                : pathSearcher.lookup(commandName);
+        if (executable == null || !executable.canExecute()) {
+            writestderrFile("parallel: " + commandName + ": command not found", context);
+            return 127;
+        }
+        template.set(0, ExternalCommandExecutor.programName(commandName, executable));
 
-        Command command = commands.get(commandName);
-        if (command != null) {
-            // Ensure redirection files are created even if the command doesn't write to
-            // them
-            if (context.stdoutFile != null) {
-                try {
-                    new FileWriter(context.stdoutFile, context.appendStdout).close();
-                } catch (IOException e) {
-                    System.err.println("Error creating output file: " + e.getMessage());
+        // a producer starts jobs as permits free up and queues their futures
+        // in item order; this thread drains the queue, writing each job's
+        // output as soon as it and every job before it are done. A permit is
+        // only returned once its job's output is written, so behind one slow
+        // job at most `jobs` outputs are held in memory.
+        BlockingQueue<Future<JobOutput>> pending = new LinkedBlockingQueue<>();
+        Future<JobOutput> endOfInput = CompletableFuture.completedFuture(null);
+        Semaphore permits = new Semaphore(jobs);
+        List<String> fixedItems = items;
+        Thread producer = Thread.ofVirtual().name("parallel-producer").start(() -> {
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                Iterator<String> source = fixedItems != null ? fixedItems.iterator() : stdinLines(context);
+                while (source.hasNext()) {
+                    List<String> command = substitute(template, source.next());
+                    permits.acquire();
+                    pending.add(executor.submit(() -> run(command)));
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                pending.add(endOfInput);
             }
-            if (context.stderrFile != null) {
+        });
+
+        int total = 0;
+        int failed = 0;
+        OutputSink out = context.stdout();
+        OutputSink err = context.stderr();
+        try {
+            for (Future<JobOutput> next = pending.take(); next != endOfInput; next = pending.take()) {
+                total++;
                 try {
-                    new FileWriter(context.stderrFile, context.appendStderr).close();
-                } catch (IOException e) {
-                    System.err.println("Error creating error file: " + e.getMessage());
+                    JobOutput output = next.get();
+                    out.write(output.stdout(), 0, output.stdout().length);
+                    out.flush();
+                    err.write(output.stderr(), 0, output.stderr().length);
+                    err.flush();
+                    if (output.exitCode() != 0) {
+                        failed++;
+                    }
+                } catch (ExecutionException e) {
+                    failed++;
+                    writestderrFile("parallel: " + commandName + ": " + e.getCause().getMessage(), context);
+                } finally {
+                    permits.release();
                 }
             }
-            command.execute(parsedArg, context);
-        } else if (!commandName.isEmpty()) {
-            // externalCommandExecutor.execute(commandName, parsedArgList, pathSearcher,
-            // shellState);
-            externalCommandExecutor.execute(commandName, parsedArgList, pathSearcher, shellState, context);
-        } else {
-            System.out.println(commandName + ": command not found");
+            producer.join();
+        } catch (InterruptedException e) {
+            producer.interrupt();
+            Thread.currentThread().interrupt();
         }
+        if (failed > 0) {
+            writestderrFile("parallel: " + failed + " of " + total + " jobs failed", context);
+        }
+        return Math.min(failed, 101);
     }
-}
 
-class ExternalCommandExecutor {
-    public void execute(String commandName, String[] argList, PathSearcher pathSearcher, ShellState shellState,
-            RedirectionContext context) {
-        // Support direct path execution if command contains a '/'
-        if (commandName.contains(File.separator)) {
-            File direct = new File(commandName);
-            if (!direct.isAbsolute()) {
-                direct = new File(shellState.getCurrentDirectory(), commandName);
+    private JobOutput run(List<String> command) throws IOException, InterruptedException {
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.directory(shellState.getCurrentDirectory());
+        shellState.getEnvironment().applyTo(pb);
+        long spawnStart = System.nanoTime();
+        Process process = pb.start();
+        shellState.getMetrics().spawn.record(System.nanoTime() - spawnStart);
+        process.getOutputStream().close();
+        CompletableFuture<byte[]> stderr = new CompletableFuture<>();
+        Thread.ofVirtual().start(() -> {
+            try (InputStream in = process.getErrorStream()) {
+                stderr.complete(in.readAllBytes());
+            } catch (IOException e) {
+                stderr.complete(new byte[0]);
             }
-            if (direct.exists() && direct.canExecute() && direct.isFile()) {
-                runProcess(commandName, direct.getAbsolutePath(), argList, shellState, context);
-                return;
+        });
+        byte[] stdout;
+        try (InputStream in = process.getInputStream()) {
+            stdout = in.readAllBytes();
+        }
+        int exitCode = process.waitFor();
+        return new JobOutput(stdout, stderr.join(), exitCode);
+    }
+
+    private static List<String> substitute(List<String> template, String item) {
+        List<String> command = new ArrayList<>(template.size() + 1);
+        boolean replaced = false;
+        for (String word : template) {
+            if (word.contains("{}")) {
+                command.add(word.replace("{}", item));
+                replaced = true;
             } else {
-                System.out.println(commandName + ": command not found");
-                // writestderrFile(commandName + ": command not found", stderrFile);
-                return;
+                command.add(word);
             }
         }
+        if (!replaced) {
+            command.add(item);
+        }
+        return command;
+    }
 
-        List<File> executableFiles = pathSearcher.search(commandName);
-        if (executableFiles.isEmpty()) {
-            // System.out.println(commandName + ": command not found");
-            writestderrFile(commandName + ": command not found", context);
-            return;
+    // non-empty lines of the command's stdin
+    private static Iterator<String> stdinLines(RedirectionContext context) {
+        if (context.stdin == null) {
+            return Collections.emptyIterator();
         }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(context.stdin));
+        return reader.lines().filter(line -> !line.isEmpty()).iterator();
+    }
+}
+
+// NAME=value [NAME=value...] on its own: sets shell variables. Created per
+// planned command with the words still unexpanded, since values are expanded
+// (without splitting) only when it runs.
+class AssignmentCommand implements Command {
+    private final String[] assignments;
+    private final ShellState shellState;
 
-        File executable = executableFiles.get(0); // Use the first found executable
-        runProcess(commandName, executable.getAbsolutePath(), argList, shellState, context);
+    AssignmentCommand(String[] assignments, ShellState shellState) {
+        this.assignments = assignments;
+        this.shellState = shellState;
     }
 
-    private void writestderrFile(String content, RedirectionContext context) {
-        if (context.stderrFile != null) {
-            try (PrintWriter writer = new PrintWriter(new FileWriter(context.stderrFile))) {
-                writer.println(content);
-            } catch (IOException e) {
-                System.err.println("Error redirecting output: " + e.getMessage());
-            }
-        } else {
-            System.out.println(content);
+    @Override
+    public int execute(String arguments, RedirectionContext context) {
+        for (String assignment : assignments) {
+            int eq = assignment.indexOf('=');
+            shellState.setVariable(assignment.substring(0, eq),
+                    Expansion.value(assignment.substring(eq + 1), shellState));
         }
+        return 0;
     }
+}
 
-    private void runProcess(String commandName, String executablePath, String[] argList, ShellState shellState,
-            RedirectionContext context) {
-        try {
-            List<String> commandWithArgs = new ArrayList<>(1 + argList.length);
-            // commandWithArgs.add(executablePath); // absolute path prevents ambiguity //
-            // commenting it out as the test is failing
-            commandWithArgs.add(commandName); // demands the restriction of command name and its args only, no other
-                                              // param
-            for (String a : argList) {
-                if (!a.isEmpty())
-                    commandWithArgs.add(a);
-            }
+// export [-p] [NAME[=value]...]; with no names, lists the environment
+class ExportCommand implements Command {
+    private final ShellState shellState;
 
-            ProcessBuilder pb = new ProcessBuilder(commandWithArgs);
-            // set working directory to current shell directory (emulated cd)
-            pb.directory(shellState.getCurrentDirectory());
-            // pb.redirectErrorStream(true); // merge stderr into stdout for now (simpler)
-            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+    ExportCommand(ShellState shellState) {
+        this.shellState = shellState;
+    }
 
-            if (context.stdoutFile != null) {
-                // pb.redirectOutput(ProcessBuilder.Redirect.to(context.stdoutFile));
-                pb.redirectOutput(context.appendStdout ? ProcessBuilder.Redirect.appendTo(context.stdoutFile)
-                        : ProcessBuilder.Redirect.to(context.stdoutFile));
-            } else {
-                pb.redirectOutput(ProcessBuilder.Redirect.INHERIT);
-            }
+    @Override
+    public int execute(String arguments, RedirectionContext context) {
+        return execute(arguments.isEmpty() ? new String[0] : arguments.split(" "), context);
+    }
 
-            if (context.stderrFile != null) {
-                // pb.redirectError(context.stderrFile);
-                pb.redirectError(context.appendStderr ? ProcessBuilder.Redirect.appendTo(context.stderrFile)
-                        : ProcessBuilder.Redirect.to(context.stderrFile));
-            } else {
-                pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+    @Override
+    public int execute(String[] args, RedirectionContext context) {
+        if (args.length == 0 || (args.length == 1 && args[0].equals("-p"))) {
+            for (Map.Entry<String, String> variable : shellState.getEnvironment().toMap().entrySet()) {
+                writestdoutFile("declare -x " + variable.getKey() + "=\""
+                        + variable.getValue().replace("\\", "\\\\").replace("\"", "\\\"") + "\"", context);
             }
-
-            Process process = pb.start();
-
-            // Stream output predictably (avoid inheritIO race conditions explained earlier)
-            try (Scanner outputScanner = new Scanner(process.getInputStream())) {
-                while (outputScanner.hasNextLine()) {
-                    System.out.println(outputScanner.nextLine());
-                }
+            return 0;
+        }
+        int status = 0;
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String name = eq < 0 ? arg : arg.substring(0, eq);
+            if (!Expansion.isName(name, 0, name.length())) {
+                writestderrFile("export: `" + arg + "': not a valid identifier", context);
+                status = 1;
+                continue;
             }
-
-            // Wait for completion (exit code suppressed unless needed for future logic)
-            process.waitFor();
-        } catch (Exception e) {
-            System.err.println("Error executing command: " + e.getMessage());
+            shellState.export(name, eq < 0 ? null : arg.substring(eq + 1));
         }
+        return status;
     }
 }
 
-class PathSearcher {
-    private final String path = System.getenv("PATH");
-    private final String[] directories = path == null ? new String[0] : path.split(File.pathSeparator);
+class UnsetCommand implements Command {
+    private final ShellState shellState;
 
-    public List<File> search(String commandName) {
-        List<File> foundFiles = new ArrayList<>();
-        for (String dir : directories) {
-            File file = new File(dir, commandName);
-            if (file.exists() && file.canExecute()) {
-                foundFiles.add(file);
+    UnsetCommand(ShellState shellState) {
+        this.shellState = shellState;
+    }
+
+    @Override
+    public int execute(String arguments, RedirectionContext context) {
+        int status = 0;
+        for (String name : arguments.trim().split("\\s+")) {
+            if (name.isEmpty()) {
+                continue;
             }
+            if (!Expansion.isName(name, 0, name.length())) {
+                writestderrFile("unset: `" + name + "': not a valid identifier", context);
+                status = 1;
+                continue;
+            }
+            shellState.unset(name);
         }
-        return foundFiles;
+        return status;
     }
 }
 
 class EchoCommand implements Command {
     @Override
-    public void execute(String arguments, RedirectionContext context) {
+    public int execute(String arguments, RedirectionContext context) {
         // String[] parsedArgList = arguments.isEmpty() ? new String[0] :
         // CommandHandler.parse(arguments);
         // System.out.println(arguments);
         writestdoutFile(arguments, context);
+        return 0;
     }
 }
 
+// exit [n]: exits with n, or with the status of the last command
 class ExitCommand implements Command {
+    private final ShellState shellState;
+
+    ExitCommand(ShellState shellState) {
+        this.shellState = shellState;
+    }
+
     @Override
-    public void execute(String arguments, RedirectionContext context) {
-        System.exit(0);
+    public int execute(String arguments, RedirectionContext context) {
+        String args = arguments.trim();
+        ShellOutput.flush();
+        if (args.isEmpty()) {
+            System.exit(shellState.getLastStatus());
+        }
+        try {
+            System.exit(Integer.parseInt(args) & 0xFF);
+        } catch (NumberFormatException e) {
+            writestderrFile("exit: " + args + ": numeric argument required", context);
+            context.stderr().flush();
+            ShellOutput.flush();
+            System.exit(2);
+        }
+        return 0;
     }
 }
 
 class TypeCommand implements Command {
-    private static final Set<String> BUILTIN_COMMANDS = new HashSet<>();
+    private final CommandRegistry commands;
     private final PathSearcher pathSearcher;
 
-    static {
-        BUILTIN_COMMANDS.add("echo");
-        BUILTIN_COMMANDS.add("exit");
-        BUILTIN_COMMANDS.add("type");
-        BUILTIN_COMMANDS.add("pwd");
-        BUILTIN_COMMANDS.add("cd");
-    }
-
-    public TypeCommand(PathSearcher pathSearcher) {
+    public TypeCommand(CommandRegistry commands, PathSearcher pathSearcher) {
+        this.commands = commands;
         this.pathSearcher = pathSearcher;
     }
 
     @Override
-    public void execute(String arguments, RedirectionContext context) {
-        if (BUILTIN_COMMANDS.contains(arguments)) {
+    public int execute(String arguments, RedirectionContext context) {
+        if (arguments.equals("time")) {
+            writestdoutFile(arguments + " is a shell keyword", context);
+        } else if (commands.isBuiltin(arguments)) {
             // System.out.println(arguments + " is a shell builtin");
             writestdoutFile(arguments + " is a shell builtin", context);
         } else {
-            List<File> executableFiles = pathSearcher.search(arguments);
-            if (executableFiles.isEmpty()) {
+            File executable = pathSearcher.lookup(arguments);
+            if (executable == null) {
                 // System.out.println(arguments + ": not found");
                 // writestdoutFile(arguments + ": not found", stdoutFile);
                 writestderrFile(arguments + ": not found", context);
+                return 1;
             } else {
                 // System.out.println(arguments + " is " + executableFiles.get(0));
-                writestdoutFile(arguments + " is " + executableFiles.get(0), context);
+                writestdoutFile(arguments + " is " + executable, context);
             }
         }
+        return 0;
     }
 }
 
@@ -470,10 +5636,11 @@ class PwdCommand implements Command {
     }
 
     @Override
-    public void execute(String arguments, RedirectionContext context) {
+    public int execute(String arguments, RedirectionContext context) {
         // Print emulated current directory (not System.getProperty once cd used)
         // System.out.println(shellState.getCurrentDirectory().getAbsolutePath());
         writestdoutFile(shellState.getCurrentDirectory().getAbsolutePath(), context);
+        return 0;
     }
 }
 
@@ -485,76 +5652,283 @@ class CdCommand implements Command {
     }
 
     @Override
-    public void execute(String arguments, RedirectionContext context) {
+    public int execute(String arguments, RedirectionContext context) {
         String targetRaw = arguments.trim();
-        if (targetRaw.isEmpty()) {
+        if (targetRaw.isEmpty() || "~".equals(targetRaw)) {
             // No args -> HOME
-            String home = System.getenv("HOME");
+            String home = shellState.getVariable("HOME");
             if (home == null || home.isEmpty()) {
-                // stay put silently (some shells print an error if HOME unset)
-                return;
+                if (targetRaw.isEmpty()) {
+                    // stay put silently (some shells print an error if HOME unset)
+                    return 0;
+                }
+                // System.out.println("cd: ~: HOME not set");
+                writestderrFile("cd: ~: HOME not set", context);
+                return 1;
             }
-            changeDirectory(new File(home), home);
-            // changeDirectory(new File(home), home, stdoutFile);
-            return;
+            targetRaw = home;
         }
 
-        if ("~".equals(targetRaw)) {
-            String home = System.getenv("HOME");
-            if (home != null) {
-                changeDirectory(new File(home), home);
-                // changeDirectory(new File(home), home, stdoutFile);
-            } else {
-                // System.out.println("cd: ~: HOME not set");
-                // writestdoutFile("cd: ~: HOME not set", stdoutFile);
-                writestderrFile("cd: ~: HOME not set", context);
+        if ("-".equals(targetRaw)) {
+            File previous = shellState.getPreviousDirectory();
+            if (previous == null) {
+                writestderrFile("cd: OLDPWD not set", context);
+                return 1;
             }
-            return;
+            // `cd -` says where it went
+            File target = resolve(shellState, "cd", previous.getPath(), context);
+            if (target == null) {
+                return 1;
+            }
+            shellState.setCurrentDirectory(target);
+            writestdoutFile(target.getPath(), context);
+            return 0;
         }
 
-        File target = new File(targetRaw);
-        if (!target.isAbsolute()) {
-            target = new File(shellState.getCurrentDirectory(), targetRaw);
+        File target = resolve(shellState, "cd", targetRaw, context);
+        if (target == null) {
+            return 1;
         }
+        shellState.setCurrentDirectory(target);
+        // Do not print anything on success (usual shell behavior)
+        return 0;
+    }
 
-        // Normalize path (resolve .. and .)
+    // Resolves a directory argument (relative to the shell's directory) to the
+    // canonical directory to change to, or returns null after reporting why it
+    // cannot be entered. One stat of the path answers whether it exists and is
+    // a directory; the canonical form then comes from the CanonicalPathCache
+    // when the same directory was entered before, so only new directories pay
+    // for toRealPath and the search-permission check.
+    static File resolve(ShellState shellState, String commandName, String targetRaw, RedirectionContext context) {
+        Path path = shellState.getCurrentDirectory().toPath().resolve(targetRaw);
+        BasicFileAttributes attributes;
         try {
-            target = target.getCanonicalFile();
-        } catch (IOException ignored) {
-            /* fallback to original */ }
-
-        // these are later stages tasks
-        if (!target.exists()) {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (AccessDeniedException e) {
+            context.stderr().println(commandName + ": " + targetRaw + ": Permission denied");
+            return null;
+        } catch (IOException e) {
             // System.out.println("cd: " + targetRaw + ": No such file or directory");
-            // writestdoutFile("cd: " + targetRaw + ": No such file or directory",
-            // stdoutFile);
-            writestderrFile("cd: " + targetRaw + ": No such file or directory", context);
-            return;
+            context.stderr().println(commandName + ": " + targetRaw + ": No such file or directory");
+            return null;
         }
-        if (!target.isDirectory()) {
+        if (!attributes.isDirectory()) {
             // System.out.println("cd: " + targetRaw + ": Not a directory");
-            // writestdoutFile("cd: " + targetRaw + ": Not a directory", stdoutFile);
-            writestderrFile("cd: " + targetRaw + ": Not a directory", context);
-            return;
+            context.stderr().println(commandName + ": " + targetRaw + ": Not a directory");
+            return null;
+        }
+
+        // only the realpath is cached: permissions can change without the file key
+        // changing, so search permission is checked on every cd
+        CanonicalPathCache cache = shellState.getCanonicalPaths();
+        Path canonical = cache.get(path, attributes.fileKey());
+        if (canonical == null) {
+            try {
+                canonical = path.toRealPath();
+            } catch (IOException e) {
+                context.stderr().println(commandName + ": " + targetRaw + ": No such file or directory");
+                return null;
+            }
+            cache.put(path, attributes.fileKey(), canonical);
         }
-        if (!target.canRead()) { // simplistic permission check
+        if (!Files.isExecutable(canonical)) {
             // System.out.println("cd: " + targetRaw + ": Permission denied");
-            // writestdoutFile("cd: " + targetRaw + ": Permission denied", stdoutFile);
-            writestderrFile("cd: " + targetRaw + ": Permission denied", context);
-            return;
+            context.stderr().println(commandName + ": " + targetRaw + ": Permission denied");
+            return null;
         }
+        return canonical.toFile();
+    }
+}
 
-        shellState.setCurrentDirectory(target);
-        // Do not print anything on success (usual shell behavior)
+// pushd [dir]: pushes the current directory and changes to dir; with no
+// argument, swaps the current directory with the top of the stack. Prints
+// the stack like `dirs`.
+class PushdCommand implements Command {
+    private final ShellState shellState;
+
+    PushdCommand(ShellState shellState) {
+        this.shellState = shellState;
     }
 
-    private void changeDirectory(File dir, String display) {
-        if (dir.exists() && dir.isDirectory() && dir.canRead()) {
-            shellState.setCurrentDirectory(dir);
+    @Override
+    public int execute(String arguments, RedirectionContext context) {
+        String targetRaw = arguments.trim();
+        Deque<File> stack = shellState.getDirectoryStack();
+        File target;
+        if (targetRaw.isEmpty()) {
+            if (stack.isEmpty()) {
+                writestderrFile("pushd: no other directory", context);
+                return 1;
+            }
+            target = CdCommand.resolve(shellState, "pushd", stack.peek().getPath(), context);
+            if (target == null) {
+                return 1;
+            }
+            stack.pop();
         } else {
-            System.out.println("cd: " + display + ": Unable to change directory");
-            // writestdoutFile("cd: " + display + ": Unable to change directory",
-            // stdoutFile);
+            target = CdCommand.resolve(shellState, "pushd", targetRaw, context);
+            if (target == null) {
+                return 1;
+            }
+        }
+        stack.push(shellState.getCurrentDirectory());
+        shellState.setCurrentDirectory(target);
+        writestdoutFile(DirsCommand.format(shellState, false), context);
+        return 0;
+    }
+}
+
+// popd: changes to the directory on top of the stack and pops it
+class PopdCommand implements Command {
+    private final ShellState shellState;
+
+    PopdCommand(ShellState shellState) {
+        this.shellState = shellState;
+    }
+
+    @Override
+    public int execute(String arguments, RedirectionContext context) {
+        Deque<File> stack = shellState.getDirectoryStack();
+        if (stack.isEmpty()) {
+            writestderrFile("popd: directory stack empty", context);
+            return 1;
+        }
+        File target = CdCommand.resolve(shellState, "popd", stack.peek().getPath(), context);
+        if (target == null) {
+            return 1;
+        }
+        stack.pop();
+        shellState.setCurrentDirectory(target);
+        writestdoutFile(DirsCommand.format(shellState, false), context);
+        return 0;
+    }
+}
+
+// dirs [-clpv]: the current directory followed by the stack, with $HOME
+// shown as ~ unless -l. -c clears the stack, -p prints one per line and -v
+// numbers them.
+class DirsCommand implements Command {
+    private final ShellState shellState;
+
+    DirsCommand(ShellState shellState) {
+        this.shellState = shellState;
+    }
+
+    @Override
+    public int execute(String arguments, RedirectionContext context) {
+        boolean longForm = false;
+        boolean perLine = false;
+        boolean numbered = false;
+        for (String option : arguments.trim().split(" ")) {
+            if (option.isEmpty()) {
+                continue;
+            }
+            if (!option.startsWith("-") || option.length() == 1) {
+                writestderrFile("dirs: " + option + ": invalid argument", context);
+                return 1;
+            }
+            for (char c : option.substring(1).toCharArray()) {
+                switch (c) {
+                    case 'c':
+                        shellState.getDirectoryStack().clear();
+                        return 0;
+                    case 'l':
+                        longForm = true;
+                        break;
+                    case 'p':
+                        perLine = true;
+                        break;
+                    case 'v':
+                        perLine = true;
+                        numbered = true;
+                        break;
+                    default:
+                        writestderrFile("dirs: -" + c + ": invalid option", context);
+                        writestderrFile("dirs: usage: dirs [-clpv]", context);
+                        return 2;
+                }
+            }
+        }
+        if (!perLine) {
+            writestdoutFile(format(shellState, longForm), context);
+            return 0;
+        }
+        List<String> entries = entries(shellState, longForm);
+        for (int i = 0; i < entries.size(); i++) {
+            writestdoutFile(numbered ? String.format("%2d  %s", i, entries.get(i)) : entries.get(i), context);
+        }
+        return 0;
+    }
+
+    static String format(ShellState shellState, boolean longForm) {
+        return String.join(" ", entries(shellState, longForm));
+    }
+
+    private static List<String> entries(ShellState shellState, boolean longForm) {
+        List<String> entries = new ArrayList<>(shellState.getDirectoryStack().size() + 1);
+        String home = shellState.getVariable("HOME");
+        entries.add(display(shellState.getCurrentDirectory(), home, longForm));
+        for (File dir : shellState.getDirectoryStack()) {
+            entries.add(display(dir, home, longForm));
+        }
+        return entries;
+    }
+
+    private static String display(File dir, String home, boolean longForm) {
+        String path = dir.getPath();
+        if (longForm || home == null || home.isEmpty() || home.equals("/")) {
+            return path;
+        }
+        if (path.equals(home)) {
+            return "~";
+        }
+        return path.startsWith(home + "/") ? "~" + path.substring(home.length()) : path;
+    }
+}
+
+// Canonical (symlink-free) forms of the directories cd has entered, keyed by
+// the path as given (made absolute), so a repeated cd skips the
+// component-by-component walk of realpath. An entry is only used while the
+// path still leads to the same directory: the caller's stat of the path has
+// to yield the same file key (device and inode), so a symlink or directory
+// swapped along the way is noticed. Platforms without file keys get no
+// caching.
+class CanonicalPathCache {
+    static final int CAPACITY = 64;
+
+    private final int capacity;
+    private final LinkedHashMap<Path, Entry> entries;
+
+    private static final class Entry {
+        final Object fileKey;
+        final Path canonical;
+
+        Entry(Object fileKey, Path canonical) {
+            this.fileKey = fileKey;
+            this.canonical = canonical;
+        }
+    }
+
+    CanonicalPathCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Entry> eldest) {
+                return size() > CanonicalPathCache.this.capacity;
+            }
+        };
+    }
+
+    // The canonical form of `path`, whose stat just returned `fileKey`, or null
+    Path get(Path path, Object fileKey) {
+        Entry entry = entries.get(path);
+        return entry != null && fileKey != null && fileKey.equals(entry.fileKey) ? entry.canonical : null;
+    }
+
+    void put(Path path, Object fileKey, Path canonical) {
+        if (fileKey != null && capacity > 0) {
+            entries.put(path, new Entry(fileKey, canonical));
         }
     }
 }
\ No newline at end of file
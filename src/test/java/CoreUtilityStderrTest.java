@@ -0,0 +1,62 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// The in-process utilities stand in for the binaries, so their diagnostics
+// must go to stderr like the binaries' do, not into the stdout stream.
+class CoreUtilityStderrTest {
+    private static final String MISSING = "no-such-file-for-coreutility-test";
+
+    private final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+    private PrintStream originalErr;
+    private CommandHandler handler;
+
+    @BeforeEach
+    void captureOutput() {
+        originalErr = System.err;
+        System.setErr(new PrintStream(stderr, true, StandardCharsets.UTF_8));
+        ShellOutput.attach(stdout, StandardCharsets.UTF_8);
+        handler = new CommandHandler();
+    }
+
+    @AfterEach
+    void restoreOutput() {
+        ShellOutput.flush();
+        ShellOutput.attach(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8);
+        System.setErr(originalErr);
+    }
+
+    private String run(String line) {
+        handler.handleCommand(line);
+        ShellOutput.flush();
+        return stdout.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void redirectedStderrPrintsNothing() {
+        assertEquals("", run("cat " + MISSING + " 2>/dev/null"));
+        assertEquals("", stderr.toString(StandardCharsets.UTF_8));
+        assertEquals(1, handler.getShellState().getLastStatus());
+    }
+
+    @Test
+    void errorGoesToStderrNotStdout() {
+        assertEquals("", run("cat " + MISSING));
+        assertEquals("cat: " + MISSING + ": No such file or directory" + System.lineSeparator(),
+                stderr.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void errorIsNotPipedToTheNextStage() {
+        assertEquals("0" + System.lineSeparator(), run("cat " + MISSING + " | wc -l").stripLeading());
+    }
+}
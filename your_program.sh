@@ -21,4 +21,10 @@ set -e # Exit early if any commands fail
 #
 # - Edit this to change how your program runs locally
 # - Edit .codecrafters/run.sh to change how your program runs remotely
-exec java --enable-preview -jar /tmp/codecrafters-build-shell-java/codecrafters-shell.jar "$@"
+
+# Use the AOT cache from `mvn -Paot package` when it has been built
+AOT_CACHE=/tmp/codecrafters-build-shell-java/codecrafters-shell.aot
+if [ -f "$AOT_CACHE" ]; then
+  exec java --enable-preview --enable-native-access=ALL-UNNAMED -XX:AOTCache="$AOT_CACHE" -jar /tmp/codecrafters-build-shell-java/codecrafters-shell.jar "$@"
+fi
+exec java --enable-preview --enable-native-access=ALL-UNNAMED -jar /tmp/codecrafters-build-shell-java/codecrafters-shell.jar "$@"